@@ -0,0 +1,198 @@
+package dk.kaspergsm.stormdeploy;
+
+import static com.google.common.base.Charsets.UTF_8;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.Yaml;
+import com.google.common.io.Files;
+
+/**
+ * Local copy of the nodes of a cluster (ids, daemons and addresses), stored in $HOME/.storm/clusters/CLUSTERNAME.yaml.
+ * 	Written on deploy, scaleout and attach, so attaching does not require querying the cloud provider.
+ * 
+ * @author Kasper Grud Skat Madsen
+ */
+public class ClusterState {
+	private static Logger log = LoggerFactory.getLogger(ClusterState.class);
+	private static final int VERSION = 1;
+	private final String _clustername;
+	private final long _updated;
+	private final List<Node> _nodes;
+	
+	public static class Node {
+		private final String _id, _publicIp, _privateIp;
+		private final List<String> _daemons;
+		
+		public Node(String id, List<String> daemons, String publicIp, String privateIp) {
+			_id = id;
+			_daemons = Collections.unmodifiableList(new ArrayList<String>(daemons));
+			_publicIp = publicIp;
+			_privateIp = privateIp;
+		}
+		
+		public String getId() {
+			return _id;
+		}
+		
+		public List<String> getDaemons() {
+			return _daemons;
+		}
+		
+		public String getPublicIp() {
+			return _publicIp;
+		}
+		
+		public String getPrivateIp() {
+			return _privateIp;
+		}
+	}
+	
+	public ClusterState(String clustername, long updated, List<Node> nodes) {
+		_clustername = clustername;
+		_updated = updated;
+		_nodes = Collections.unmodifiableList(new ArrayList<Node>(nodes));
+	}
+	
+	/**
+	 * Create state from running nodes, ordered by id
+	 */
+	public static ClusterState fromNodes(String clustername, Collection<? extends NodeMetadata> nodes) {
+		ArrayList<NodeMetadata> sortedNodes = new ArrayList<NodeMetadata>(nodes);
+		Collections.sort(sortedNodes, new Comparator<NodeMetadata>() {
+			@Override
+			public int compare(NodeMetadata n1, NodeMetadata n2) {
+				return n1.getId().compareTo(n2.getId());
+			}
+		});
+		
+		ArrayList<Node> ret = new ArrayList<Node>();
+		for (NodeMetadata n : sortedNodes) {
+			ArrayList<String> daemons = new ArrayList<String>();
+			if (n.getUserMetadata().containsKey("daemons")) {
+				for (String daemon : n.getUserMetadata().get("daemons").replace("[", "").replace("]", "").split(","))
+					daemons.add(daemon.trim().toUpperCase());
+			}
+			ret.add(new Node(
+					n.getId(), 
+					daemons, 
+					n.getPublicAddresses().isEmpty() ? null : n.getPublicAddresses().iterator().next(), 
+					n.getPrivateAddresses().isEmpty() ? null : n.getPrivateAddresses().iterator().next()));
+		}
+		return new ClusterState(clustername, System.currentTimeMillis(), ret);
+	}
+	
+	/**
+	 * Read state of cluster, returns null if no (readable) state exists
+	 */
+	@SuppressWarnings("unchecked")
+	public static ClusterState read(String clustername) {
+		File f = getFile(clustername);
+		if (!f.exists())
+			return null;
+		
+		try {
+			Map<String, Object> state = (Map<String, Object>) new Yaml().load(Files.toString(f, UTF_8));
+			if (state == null || !Integer.valueOf(VERSION).equals(state.get("version"))) {
+				log.warn("Ignoring cluster state " + f.getAbsolutePath() + ", unsupported version");
+				return null;
+			}
+			
+			ArrayList<Node> nodes = new ArrayList<Node>();
+			for (Map<String, Object> n : (List<Map<String, Object>>) state.get("nodes"))
+				nodes.add(new Node((String) n.get("id"), (List<String>) n.get("daemons"), (String) n.get("public-ip"), (String) n.get("private-ip")));
+			return new ClusterState((String) state.get("cluster"), ((Number) state.get("updated")).longValue(), nodes);
+		} catch (Exception ex) {
+			log.warn("Ignoring unreadable cluster state " + f.getAbsolutePath(), ex);
+			return null;
+		}
+	}
+	
+	/**
+	 * Write state to $HOME/.storm/clusters/CLUSTERNAME.yaml
+	 */
+	public void write() throws IOException {
+		ArrayList<Map<String, Object>> nodes = new ArrayList<Map<String, Object>>();
+		for (Node n : _nodes) {
+			LinkedHashMap<String, Object> node = new LinkedHashMap<String, Object>();
+			node.put("id", n.getId());
+			node.put("daemons", new ArrayList<String>(n.getDaemons()));
+			node.put("public-ip", n.getPublicIp());
+			node.put("private-ip", n.getPrivateIp());
+			nodes.add(node);
+		}
+		LinkedHashMap<String, Object> state = new LinkedHashMap<String, Object>();
+		state.put("version", VERSION);
+		state.put("cluster", _clustername);
+		state.put("updated", _updated);
+		state.put("nodes", nodes);
+		
+		DumperOptions options = new DumperOptions();
+		options.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
+		File f = getFile(_clustername);
+		f.getParentFile().mkdirs();
+		FileWriter writer = new FileWriter(f, false);
+		try {
+			new Yaml(options).dump(state, writer);
+		} finally {
+			writer.close();
+		}
+	}
+	
+	/**
+	 * Remove state of cluster
+	 */
+	public static void delete(String clustername) {
+		getFile(clustername).delete();
+	}
+	
+	private static File getFile(String clustername) {
+		return new File(Tools.getHomeDir() + ".storm" + File.separator + "clusters" + File.separator + clustername + ".yaml");
+	}
+	
+	public String getClustername() {
+		return _clustername;
+	}
+	
+	/**
+	 * Time of last update, in milliseconds since epoch
+	 */
+	public long getUpdated() {
+		return _updated;
+	}
+	
+	public List<Node> getNodes() {
+		return _nodes;
+	}
+	
+	/**
+	 * Get public ips of nodes running daemon, in order of node id
+	 */
+	public List<String> getPublicIps(String daemon) {
+		ArrayList<String> ret = new ArrayList<String>();
+		for (Node n : _nodes) {
+			if (n.getDaemons().contains(daemon))
+				ret.add(n.getPublicIp());
+		}
+		return ret;
+	}
+	
+	/**
+	 * Get public ip of first node running daemon, or null if no node runs daemon
+	 */
+	public String getPublicIp(String daemon) {
+		List<String> ips = getPublicIps(daemon);
+		return ips.isEmpty() ? null : ips.get(0);
+	}
+}
@@ -0,0 +1,186 @@
+package dk.kaspergsm.stormdeploy;
+
+import static org.jclouds.scriptbuilder.domain.Statements.exec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.ExecResponse;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.scriptbuilder.domain.Statement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import dk.kaspergsm.stormdeploy.userprovided.Configuration;
+
+/**
+ * Executes configuration stages on nodes, following a dependency graph.
+ * 	A stage on a node starts as soon as the stages it depends on have completed,
+ * 	so each node moves through its stages on its own schedule, instead of waiting
+ * 	for the slowest node of the cluster in every phase.
+ *
+ * @author Kasper Grud Skat Madsen
+ */
+public class ConfigurationPipeline {
+	private static Logger log = LoggerFactory.getLogger(ConfigurationPipeline.class);
+	private final List<ListenableFuture<Void>> _stages = Collections.synchronizedList(new ArrayList<ListenableFuture<Void>>());
+	private final Map<String, LinkedHashMap<String, Long>> _timings = new TreeMap<String, LinkedHashMap<String, Long>>();
+	private final Map<String, LinkedHashMap<String, Throwable>> _failures = new TreeMap<String, LinkedHashMap<String, Throwable>>();
+	private final ListeningExecutorService _executor;
+	private final ComputeService _compute;
+	private final Configuration _config;
+
+	/**
+	 * @param maxConcurrentScripts
+	 *            Max number of scripts executing at the same time (one ssh session each)
+	 */
+	public ConfigurationPipeline(ComputeService compute, Configuration config, int maxConcurrentScripts) {
+		_compute = compute;
+		_config = config;
+		_executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(
+				maxConcurrentScripts,
+				new ThreadFactoryBuilder().setNameFormat("configure-%d").setDaemon(true).build()));
+	}
+
+	/**
+	 * Schedule stage on node. Commands are executed when all dependencies have completed successfully.
+	 * 	The script stops at the first failing command, and the stage fails if it exits with non-zero status.
+	 * 	If commands is empty, the stage completes as soon as its dependencies have completed.
+	 * 	If any dependency fails, the stage fails with the same cause.
+	 */
+	public ListenableFuture<Void> stage(final String name, final NodeMetadata node, List<Statement> commands, final boolean runAsRoot, List<ListenableFuture<Void>> dependencies) {
+		if (commands.isEmpty())
+			return task(name, node, null, dependencies);
+		final List<Statement> script = new ArrayList<Statement>();
+		script.add(exec("set -e"));
+		script.addAll(commands);
+		return task(name, node, new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				ExecResponse response = Tools.executeOnNode(node, script, runAsRoot, name, _compute, _config);
+				if (response.getExitStatus() != 0)
+					throw new IllegalStateException(name + " exited with status " + response.getExitStatus() + ": " + response.getError());
+				return null;
+			}
+		}, dependencies);
+	}
+	
+	/**
+	 * Schedule stage on node, as the image user, for commands whose exit status is the result (e.g. a readiness check timing out)
+	 */
+	public ListenableFuture<Void> check(String name, NodeMetadata node, List<Statement> commands, List<ListenableFuture<Void>> dependencies) {
+		return stage(name, node, commands, false, dependencies);
+	}
+	
+	/**
+	 * Schedule task on node, for work not expressed as a script (e.g. uploading files).
+	 * 	Is executed when all dependencies have completed successfully. A null task completes as soon as its dependencies have completed.
+	 */
+	public ListenableFuture<Void> task(final String name, final NodeMetadata node, final Callable<Void> task, List<ListenableFuture<Void>> dependencies) {
+		ListenableFuture<Void> stage = Futures.transform(Futures.allAsList(dependencies), new AsyncFunction<List<Void>, Void>() {
+			@Override
+			public ListenableFuture<Void> apply(List<Void> completed) {
+				if (task == null)
+					return Futures.immediateFuture(null);
+				return _executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						long start = System.currentTimeMillis();
+						try {
+							task.call();
+						} catch (Exception ex) {
+							record(_failures, node, name, ex);
+							throw ex;
+						}
+						record(_timings, node, name, System.currentTimeMillis() - start);
+						return null;
+					}
+				});
+			}
+		});
+		_stages.add(stage);
+		return stage;
+	}
+
+	/**
+	 * Wait until all scheduled stages have completed.
+	 * 	A failing stage only stops the stages depending on it, all other stages run to completion.
+	 * 	Afterwards failures are reported per node, and the first failure is thrown.
+	 */
+	public void awaitAll() throws InterruptedException, ExecutionException {
+		try {
+			ArrayList<ListenableFuture<Void>> stages;
+			synchronized (_stages) {
+				stages = new ArrayList<ListenableFuture<Void>>(_stages);
+			}
+			Futures.successfulAsList(stages).get();
+			
+			Map<String, LinkedHashMap<String, Throwable>> failures = getFailures();
+			for (Entry<String, LinkedHashMap<String, Throwable>> node : failures.entrySet()) {
+				for (Entry<String, Throwable> stage : node.getValue().entrySet())
+					log.error("Stage " + stage.getKey() + " failed on " + node.getKey(), stage.getValue());
+			}
+			if (failures.size() > 0)
+				log.error("Configuration failed on " + failures.size() + " node(s): " + failures.keySet());
+			
+			for (ListenableFuture<Void> stage : stages)
+				stage.get();
+		} finally {
+			_executor.shutdown();
+		}
+	}
+
+	/**
+	 * Get map{node, map{stage, execution time in milliseconds}}, stages in order of completion
+	 */
+	public Map<String, LinkedHashMap<String, Long>> getStageTimings() {
+		return copy(_timings);
+	}
+	
+	/**
+	 * Get map{node, map{stage, cause}}, for all stages failing while executing on a node
+	 */
+	public Map<String, LinkedHashMap<String, Throwable>> getFailures() {
+		return copy(_failures);
+	}
+
+	public void logStageTimings() {
+		log.info("Stage timings:");
+		for (Entry<String, LinkedHashMap<String, Long>> node : getStageTimings().entrySet()) {
+			StringBuilder sb = new StringBuilder();
+			for (Entry<String, Long> stage : node.getValue().entrySet())
+				sb.append(" ").append(stage.getKey()).append("=").append(stage.getValue() / 1000).append("s");
+			log.info("\t" + node.getKey() + sb.toString());
+		}
+	}
+
+	private static <T> void record(Map<String, LinkedHashMap<String, T>> records, NodeMetadata node, String stage, T value) {
+		String nodeName = node.getPublicAddresses().isEmpty() ? node.getId() : node.getPublicAddresses().iterator().next();
+		synchronized (records) {
+			if (!records.containsKey(nodeName))
+				records.put(nodeName, new LinkedHashMap<String, T>());
+			records.get(nodeName).put(stage, value);
+		}
+	}
+	
+	private static <T> Map<String, LinkedHashMap<String, T>> copy(Map<String, LinkedHashMap<String, T>> records) {
+		synchronized (records) {
+			TreeMap<String, LinkedHashMap<String, T>> ret = new TreeMap<String, LinkedHashMap<String, T>>();
+			for (Entry<String, LinkedHashMap<String, T>> e : records.entrySet())
+				ret.put(e.getKey(), new LinkedHashMap<String, T>(e.getValue()));
+			return ret;
+		}
+	}
+}
@@ -0,0 +1,225 @@
+package dk.kaspergsm.stormdeploy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.ec2.EC2Api;
+import org.jclouds.ec2.domain.Attachment;
+import org.jclouds.ec2.domain.Volume;
+import org.jclouds.ec2.features.ElasticBlockStoreApi;
+import org.jclouds.ec2.options.CreateVolumeOptions;
+import org.jclouds.rest.ResourceNotFoundException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import dk.kaspergsm.stormdeploy.userprovided.Configuration;
+
+/**
+ * Creates and attaches EBS volumes to a set of nodes.
+ * 	All volumes are created concurrently, then the state of all volumes is polled
+ * 	with one request per round (jittered backoff) until they are available and attached.
+ * 	If provisioning fails, all volumes it created are deleted again.
+ *
+ * @author Kasper Grud Skat Madsen
+ */
+public class EBSProvisioner {
+	private static Logger log = LoggerFactory.getLogger(EBSProvisioner.class);
+	private static final int MAX_CONCURRENT_REQUESTS = 10;
+	private static final long INITIAL_POLL_INTERVAL_MS = 1000;
+	private static final long MAX_POLL_INTERVAL_MS = 15000;
+	private static final long TIMEOUT_MS = 10 * 60 * 1000;
+	private static final int MAX_DELETE_ATTEMPTS = 20;
+	private static final long DELETE_RETRY_INTERVAL_MS = 3000;
+	private final Random _random = new Random();
+	private final ElasticBlockStoreApi _ebs;
+	private final Configuration _config;
+	private final String _region;
+
+	public EBSProvisioner(ComputeService compute, Configuration config) {
+		_ebs = compute.getContext().unwrapApi(EC2Api.class).getElasticBlockStoreApi().get();
+		_region = config.getDeploymentLocation();
+		_config = config;
+	}
+
+	/**
+	 * Device name of the i'th volume attached to a node (/dev/sdf, /dev/sdg, ...)
+	 */
+	public static String getDeviceName(int i) {
+		return "/dev/sd" + (char) ('f' + i);
+	}
+
+	/**
+	 * Create and attach ebs-volumes volumes to each node. Returns when all volumes are attached.
+	 * 	On failure, the volumes created are detached and deleted before the cause is thrown
+	 */
+	public void provision(Collection<NodeMetadata> nodes) throws InterruptedException, ExecutionException {
+		if (nodes.isEmpty())
+			return;
+		ListeningExecutorService executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(
+				MAX_CONCURRENT_REQUESTS,
+				new ThreadFactoryBuilder().setNameFormat("ebs-%d").setDaemon(true).build()));
+		List<ListenableFuture<Volume>> creates = new ArrayList<ListenableFuture<Volume>>();
+		boolean provisioned = false;
+		try {
+			long start = System.currentTimeMillis();
+
+			// Create all volumes
+			List<NodeMetadata> owners = new ArrayList<NodeMetadata>();
+			for (NodeMetadata node : nodes) {
+				for (int i = 0; i < _config.getEBSVolumes(); i++) {
+					creates.add(executor.submit(createVolume(node.getLocation().getId())));
+					owners.add(node);
+				}
+			}
+			List<Volume> volumes = Futures.allAsList(creates).get();
+			HashMap<String, NodeMetadata> volumeToNode = new HashMap<String, NodeMetadata>();
+			for (int i = 0; i < volumes.size(); i++)
+				volumeToNode.put(volumes.get(i).getId(), owners.get(i));
+			awaitVolumes(volumeToNode.keySet(), false);
+
+			// Attach all volumes
+			HashMap<NodeMetadata, Integer> attached = new HashMap<NodeMetadata, Integer>();
+			List<ListenableFuture<Attachment>> attaches = new ArrayList<ListenableFuture<Attachment>>();
+			for (Entry<String, NodeMetadata> e : volumeToNode.entrySet()) {
+				int device = attached.containsKey(e.getValue()) ? attached.get(e.getValue()) : 0;
+				attached.put(e.getValue(), device + 1);
+				attaches.add(executor.submit(attachVolume(e.getKey(), e.getValue().getProviderId(), getDeviceName(device))));
+			}
+			Futures.allAsList(attaches).get();
+			awaitVolumes(volumeToNode.keySet(), true);
+
+			log.info("Attached " + volumes.size() + " EBS volume(s) to " + nodes.size() + " instance(s) in " + (System.currentTimeMillis() - start) / 1000 + "s");
+			provisioned = true;
+		} finally {
+			if (!provisioned)
+				deleteVolumes(creates, executor);
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Delete all volumes created, including those still being created when provisioning failed
+	 */
+	private void deleteVolumes(List<ListenableFuture<Volume>> creates, ListeningExecutorService executor) {
+		try {
+			List<ListenableFuture<Boolean>> deletes = new ArrayList<ListenableFuture<Boolean>>();
+			for (Volume v : Futures.successfulAsList(creates).get()) {
+				if (v != null)
+					deletes.add(executor.submit(deleteVolume(v.getId())));
+			}
+			int deleted = 0;
+			for (Boolean d : Futures.successfulAsList(deletes).get()) {
+				if (d != null && d)
+					deleted++;
+			}
+			log.info("Deleted " + deleted + " of " + deletes.size() + " EBS volume(s) created by failed provisioning");
+		} catch (InterruptedException ex) {
+			log.error("Interrupted while deleting EBS volumes, remaining volumes must be deleted manually", ex);
+		} catch (ExecutionException ex) {
+			log.error("Problem deleting EBS volumes, remaining volumes must be deleted manually", ex);
+		}
+	}
+
+	private Callable<Volume> createVolume(final String availabilityZone) {
+		return new Callable<Volume>() {
+			@Override
+			public Volume call() throws Exception {
+				CreateVolumeOptions options = new CreateVolumeOptions().withSize(_config.getEBSStorageSize());
+				if (_config.getEBSVolumeType() != null)
+					options.volumeType(_config.getEBSVolumeType());
+				if (_config.getEBSIops() > 0)
+					options.withIops(_config.getEBSIops());
+				return _ebs.createVolumeInAvailabilityZone(availabilityZone, options);
+			}
+		};
+	}
+
+	private Callable<Attachment> attachVolume(final String volumeId, final String instanceId, final String device) {
+		return new Callable<Attachment>() {
+			@Override
+			public Attachment call() throws Exception {
+				return _ebs.attachVolumeInRegion(_region, volumeId, instanceId, device);
+			}
+		};
+	}
+
+	/**
+	 * Volumes may be attached or attaching, so detach is forced and deletion is retried until the volume is detached
+	 */
+	private Callable<Boolean> deleteVolume(final String volumeId) {
+		return new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				for (int attempt = 1; ; attempt++) {
+					try {
+						_ebs.deleteVolumeInRegion(_region, volumeId);
+						return true;
+					} catch (RuntimeException ex) {
+						if (attempt >= MAX_DELETE_ATTEMPTS) {
+							log.error("Could not delete EBS volume " + volumeId + ", it must be deleted manually", ex);
+							return false;
+						}
+					}
+					try {
+						_ebs.detachVolumeInRegion(_region, volumeId, true);
+					} catch (RuntimeException ex) {
+						// not attached, or already detaching
+					}
+					Thread.sleep(DELETE_RETRY_INTERVAL_MS);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Poll until all volumes are available (or attached, if attached is true)
+	 */
+	private void awaitVolumes(Set<String> volumeIds, boolean attached) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		long interval = INITIAL_POLL_INTERVAL_MS;
+		while (true) {
+			int pending = volumeIds.size();
+			try {
+				for (Volume v : _ebs.describeVolumesInRegion(_region, volumeIds.toArray(new String[volumeIds.size()]))) {
+					if (v.getStatus() == Volume.Status.ERROR)
+						throw new IllegalStateException("EBS volume " + v.getId() + " failed");
+					if (attached ? isAttached(v) : v.getStatus() == Volume.Status.AVAILABLE)
+						pending--;
+				}
+			} catch (ResourceNotFoundException ex) {
+				// new volumes are not always visible right away
+			}
+			if (pending == 0)
+				return;
+			if (System.currentTimeMillis() > deadline)
+				throw new IllegalStateException("Timed out waiting for " + pending + " EBS volume(s) to become " + (attached ? "attached" : "available"));
+
+			// Sleep between 50% and 100% of interval, so concurrent launches do not poll in lockstep
+			Thread.sleep(interval / 2 + (long) (_random.nextDouble() * interval / 2));
+			interval = Math.min(MAX_POLL_INTERVAL_MS, interval * 2);
+		}
+	}
+
+	private static boolean isAttached(Volume v) {
+		if (v.getAttachments().isEmpty())
+			return false;
+		for (Attachment a : v.getAttachments()) {
+			if (a.getStatus() != Attachment.Status.ATTACHED)
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,219 @@
+package dk.kaspergsm.stormdeploy;
+
+import static org.jclouds.scriptbuilder.domain.Statements.exec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import org.jclouds.aws.ec2.compute.AWSEC2TemplateOptions;
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.RunNodesException;
+import org.jclouds.compute.domain.Hardware;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.domain.Template;
+import org.jclouds.compute.domain.Volume;
+import org.jclouds.compute.options.TemplateOptions;
+import org.jclouds.scriptbuilder.domain.Statement;
+import org.jclouds.scriptbuilder.domain.StatementList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import dk.kaspergsm.stormdeploy.userprovided.Configuration;
+
+/**
+ * Used to launch a set of new nodes, sharing instanceType and daemons.
+ * 	Nodes failing to start are destroyed and replaced, up to MAX_LAUNCH_ATTEMPTS times.
+ *
+ * @author Kasper Grud Skat Madsen
+ */
+public class LaunchNodeTask implements Callable<HashMap<Integer, NodeMetadata>> {
+	private static Logger log = LoggerFactory.getLogger(LaunchNodeTask.class);
+	private static final int MAX_LAUNCH_ATTEMPTS = 3;
+	private Configuration _config;
+	private String _instanceType, _clustername, _region, _placementgroup, _image, _username;
+	private List<Statement> _initScript;
+	private ComputeService _compute;
+	private List<Integer> _nodeids;
+	private List<String> _daemons;
+	private boolean _attachEBSVolumes = true;
+
+	/**
+	 * @param compute
+	 *            ComputeService from JClouds
+	 * @param instanceType
+	 *            Supported instanceType (e.g. m1.medium on aws-ec2)
+	 * @param clustername
+	 *            Name of cluster to deploy
+	 * @param nodeids
+	 *            Set of nodeids being launched
+	 * @param daemons
+	 *            Set of daemons to launch on this set of nodes
+	 */
+	public LaunchNodeTask(ComputeService compute, Configuration config, String instanceType, String clustername, List<Integer> nodeids, List<String> daemons) {
+		_config = config;
+		_region = config.getDeploymentLocation();
+		_placementgroup = config.getPlacementGroup();
+		_username = config.getImageUsername();
+		_image = config.getDeploymentImage();
+		_instanceType = instanceType;
+		_clustername = clustername;
+		_daemons = daemons;
+		_compute = compute;
+		_nodeids = nodeids;
+
+		// Create initScript
+		_initScript = new ArrayList<Statement>();
+		_initScript.add(exec("echo \"" + daemons.toString() + "\" > /home/"+_username+"/daemons"));
+		_initScript.add(exec("echo \"" + instanceType.toString() + "\" > /home/"+_username+"/.instance-type"));
+	}
+
+	/**
+	 * Launch nodes now, returns map{node id, started node}.
+	 * 	If the launch fails or is cancelled, all nodes started by it are destroyed
+	 */
+	@Override
+	public HashMap<Integer, NodeMetadata> call() throws Exception {
+		Template template = buildTemplate();
+
+		Set<NodeMetadata> newNodes = new HashSet<NodeMetadata>();
+		try {
+			for (int attempt = 1; newNodes.size() < _nodeids.size(); attempt++) {
+				if (Thread.interrupted())
+					throw new InterruptedException("Launch of " + _daemons.toString() + " was cancelled");
+
+				try {
+					newNodes.addAll(_compute.createNodesInGroup(_clustername, _nodeids.size() - newNodes.size(), template));
+				} catch (RunNodesException ex) {
+					newNodes.addAll(ex.getSuccessfulNodes());
+
+					// Destroy nodes, which started but could not be reached
+					for (NodeMetadata failed : ex.getNodeErrors().keySet()) {
+						newNodes.remove(failed);
+						_compute.destroyNode(failed.getId());
+					}
+
+					if (attempt >= MAX_LAUNCH_ATTEMPTS)
+						throw ex;
+					log.warn("Replacing " + (_nodeids.size() - newNodes.size()) + " failed instance(s) of type " + _instanceType + " with daemons " + _daemons.toString(), ex);
+				}
+			}
+
+			if (_attachEBSVolumes && _config.getEBSStorageSize() > 0)
+				new EBSProvisioner(_compute, _config).provision(newNodes);
+		} catch (Exception ex) {
+			destroy(newNodes);
+			throw ex;
+		}
+
+		// Collect information about started nodes
+		// 	nodes are ordered by id, so node ids (and thereby zk myids) are assigned in a stable order
+		ArrayList<NodeMetadata> sortedNodes = new ArrayList<NodeMetadata>(newNodes);
+		Collections.sort(sortedNodes, new Comparator<NodeMetadata>() {
+			@Override
+			public int compare(NodeMetadata n1, NodeMetadata n2) {
+				return n1.getId().compareTo(n2.getId());
+			}
+		});
+		HashMap<Integer, NodeMetadata> ret = new HashMap<Integer, NodeMetadata>();
+		int i = 0;
+		for (NodeMetadata n : sortedNodes)
+			ret.put(_nodeids.get(i++), n);
+		return ret;
+	}
+
+	private void destroy(Set<NodeMetadata> nodes) {
+		for (NodeMetadata n : nodes) {
+			log.info("Terminating instance " + n.getId() + " of failed launch");
+			try {
+				_compute.destroyNode(n.getId());
+			} catch (RuntimeException ex) {
+				log.error("Problem terminating instance " + n.getId() + ", it must be removed by kill", ex);
+			}
+		}
+	}
+
+	private Template buildTemplate() {
+		try {
+			TemplateOptions to = new TemplateOptions()
+					.runAsRoot(false)
+					.wrapInInitScript(true)
+					.overrideLoginUser(_username)
+					.inboundPorts(Tools.getPortsToOpen())
+					.userMetadata("daemons", _daemons.toString())
+					.runScript(new StatementList(_initScript))
+					.overrideLoginCredentials(Tools.getPrivateKeyCredentials(_config))
+					.authorizePublicKey(Tools.getPublicKey(_config));
+			Template template = _compute.templateBuilder()
+					.hardwareId(_instanceType)
+					.locationId(_region)
+					.imageId(_image)
+					.options(to).build();
+			if (template.getOptions() instanceof AWSEC2TemplateOptions) {
+				AWSEC2TemplateOptions opt = (AWSEC2TemplateOptions) template.getOptions();
+				if (_placementgroup != null)
+					opt.placementGroup(_placementgroup);
+				opt.securityGroups("unrestricted");
+				if (_config.isMountLocalStorage())
+					mapInstanceStore(template.getHardware(), opt);
+			}
+			return template;
+		} catch (NoSuchElementException ex) {
+			// happens often when hardwareId is not found. List all possible hardware types
+			if (ex.getMessage() != null && ex.getMessage().toLowerCase().contains("hardwareid") && ex.getMessage().toLowerCase().contains("not found")) {
+				log.error("You have specified unknown hardware profile. Here follows a list of supported profiles: ");
+				Set<? extends Hardware> availableHardware = _compute.listHardwareProfiles();
+				for (Hardware h : availableHardware) {
+					log.info(h.toString());
+				}
+			}
+			throw ex;
+		}
+	}
+
+	/**
+	 * Map every instance-store volume of the hardware profile to a device (/dev/sdb, /dev/sdc, ...).
+	 * 	NVMe instance-store is always present, and needs no mapping
+	 */
+	private static void mapInstanceStore(Hardware hardware, AWSEC2TemplateOptions opt) {
+		int ephemeral = 0;
+		for (Volume v : hardware.getVolumes()) {
+			if (!v.isBootDevice() && v.getType() == Volume.Type.LOCAL && v.getDevice() != null && v.getDevice().matches("/dev/sd[b-z]"))
+				opt.mapEphemeralDeviceToDeviceName(v.getDevice(), "ephemeral" + ephemeral++);
+		}
+		if (ephemeral == 0)
+			opt.mapEphemeralDeviceToDeviceName("/dev/sdb", "ephemeral0");
+	}
+
+	/**
+	 * Launch from image in location, instead of the configured ones (e.g. when adding nodes to a running cluster)
+	 */
+	public LaunchNodeTask fromImage(String image, String location) {
+		_image = image;
+		_region = location;
+		return this;
+	}
+
+	/**
+	 * Do not attach EBS volumes, even if configured (e.g. when baking images)
+	 */
+	public LaunchNodeTask withoutEBSVolumes() {
+		_attachEBSVolumes = false;
+		return this;
+	}
+
+	public List<Integer> getNodeIds() {
+		return _nodeids;
+	}
+
+	public String getInstanceType() {
+		return _instanceType;
+	}
+
+	public List<String> getDaemons() {
+		return _daemons;
+	}
+}
@@ -0,0 +1,128 @@
+package dk.kaspergsm.stormdeploy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs LaunchNodeTasks on a bounded pool of threads.
+ * 	Each launch is reported as soon as it completes. If any launch fails,
+ * 	the remaining launches are cancelled, all nodes started by the launches are destroyed,
+ * 	and the failure is handed to the caller.
+ *
+ * @author Kasper Grud Skat Madsen
+ */
+public class NodeLauncher {
+	private static Logger log = LoggerFactory.getLogger(NodeLauncher.class);
+	private static final int ABORT_TIMEOUT_MINUTES = 15;
+	private final List<ListenableFuture<HashMap<Integer, NodeMetadata>>> _launches = new ArrayList<ListenableFuture<HashMap<Integer, NodeMetadata>>>();
+	private final List<NodeMetadata> _started = Collections.synchronizedList(new ArrayList<NodeMetadata>());
+	private final ListeningExecutorService _executor;
+	private final ComputeService _compute;
+
+	/**
+	 * @param maxConcurrentLaunches
+	 *            Max number of launches talking to the cloud provider at the same time
+	 */
+	public NodeLauncher(ComputeService compute, int maxConcurrentLaunches) {
+		_compute = compute;
+		_executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(
+				maxConcurrentLaunches,
+				new ThreadFactoryBuilder().setNameFormat("launch-%d").setDaemon(true).build()));
+	}
+
+	/**
+	 * Submit task, returns future completing with map{node id, started node}
+	 */
+	public ListenableFuture<HashMap<Integer, NodeMetadata>> launch(final LaunchNodeTask task) {
+		log.info("Starting " + task.getNodeIds().size() + " instance(s) of type " + task.getInstanceType() + " with daemons " + task.getDaemons().toString());
+		ListenableFuture<HashMap<Integer, NodeMetadata>> launch = _executor.submit(new Callable<HashMap<Integer, NodeMetadata>>() {
+			@Override
+			public HashMap<Integer, NodeMetadata> call() throws Exception {
+				// recorded before the future completes, so nodes of cancelled launches are known
+				HashMap<Integer, NodeMetadata> nodes = task.call();
+				_started.addAll(nodes.values());
+				return nodes;
+			}
+		});
+		Futures.addCallback(launch, new FutureCallback<HashMap<Integer, NodeMetadata>>() {
+			@Override
+			public void onSuccess(HashMap<Integer, NodeMetadata> nodes) {
+				log.info("Started " + nodes.size() + " instance(s) of type " + task.getInstanceType() + " with daemons " + task.getDaemons().toString());
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				if (!(t instanceof CancellationException))
+					log.error("Problem launching instance(s) of type " + task.getInstanceType() + " with daemons " + task.getDaemons().toString(), t);
+			}
+		});
+		_launches.add(launch);
+		return launch;
+	}
+
+	/**
+	 * Wait until all submitted launches have completed, returns map{node id, started node}.
+	 * 	On failure, all launches still running are cancelled, all started nodes are destroyed and the cause is rethrown.
+	 */
+	public HashMap<Integer, NodeMetadata> awaitAll() throws InterruptedException, ExecutionException {
+		try {
+			HashMap<Integer, NodeMetadata> ret = new HashMap<Integer, NodeMetadata>();
+			for (HashMap<Integer, NodeMetadata> nodes : Futures.allAsList(_launches).get())
+				ret.putAll(nodes);
+			return ret;
+		} catch (ExecutionException ex) {
+			abort();
+			throw ex;
+		} catch (InterruptedException ex) {
+			abort();
+			throw ex;
+		} finally {
+			_executor.shutdown();
+		}
+	}
+
+	/**
+	 * Cancel all launches, wait for them to stop and destroy all nodes started by completed launches.
+	 * 	Failed and cancelled launches destroy their own nodes (see LaunchNodeTask)
+	 */
+	private void abort() {
+		for (ListenableFuture<HashMap<Integer, NodeMetadata>> launch : _launches)
+			launch.cancel(true);
+		_executor.shutdown();
+		try {
+			if (!_executor.awaitTermination(ABORT_TIMEOUT_MINUTES, TimeUnit.MINUTES))
+				log.error("Launches did not stop within " + ABORT_TIMEOUT_MINUTES + " minutes, instances still starting must be removed by kill");
+		} catch (InterruptedException ex) {
+			log.error("Interrupted while stopping launches, instances still starting must be removed by kill");
+		}
+		
+		synchronized (_started) {
+			for (NodeMetadata n : _started) {
+				log.info("Terminating instance " + n.getId());
+				try {
+					_compute.destroyNode(n.getId());
+				} catch (RuntimeException ex) {
+					log.error("Problem terminating instance " + n.getId() + ", it must be removed by kill", ex);
+				}
+			}
+			_started.clear();
+		}
+	}
+}
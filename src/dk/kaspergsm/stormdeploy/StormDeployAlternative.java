@@ -5,6 +5,7 @@ import org.jclouds.compute.ComputeServiceContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import dk.kaspergsm.stormdeploy.commands.Attach;
+import dk.kaspergsm.stormdeploy.commands.Bake;
 import dk.kaspergsm.stormdeploy.commands.Deploy;
 import dk.kaspergsm.stormdeploy.commands.Kill;
 import dk.kaspergsm.stormdeploy.commands.ScaleOutCluster;
@@ -26,6 +27,7 @@ public class StormDeployAlternative {
 			log.error(" kill CLUSTERNAME");
 			log.error(" attach CLUSTERNAME");
 			log.error(" scaleout CLUSTERNAME #InstancesToAdd InstanceType");
+			log.error(" bake CLUSTERNAME InstanceType");
 			System.exit(0);
 		}
 
@@ -65,6 +67,13 @@ public class StormDeployAlternative {
 		}
 
 
+		/**
+		 * Attach using local cluster state, if usable (no connection to cloud provider needed)
+		 */
+		if (operation.trim().equalsIgnoreCase("attach") && Attach.attachCached(clustername))
+			return;
+
+
 		/**
 		 * Initialize connection to cloud provider
 		 */
@@ -90,6 +99,14 @@ public class StormDeployAlternative {
 				return;
 			}
 
+		} else if (operation.trim().equalsIgnoreCase("bake")) {
+
+			if (args.length <= 2) {
+				log.error("Missing InstanceType, usage: bake CLUSTERNAME InstanceType");
+				return;
+			}
+			Bake.bake(clustername, args[2], credentials, config, computeContext);
+
 		} else if (operation.trim().equalsIgnoreCase("attach")) {
 
 			Attach.attach(clustername, computeContext);
@@ -3,31 +3,36 @@ package dk.kaspergsm.stormdeploy;
 import static com.google.common.base.Charsets.UTF_8;
 import static org.jclouds.scriptbuilder.domain.Statements.exec;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPOutputStream;
 import org.jclouds.Constants;
 import org.jclouds.ContextBuilder;
 import org.jclouds.apis.ApiMetadata;
 import org.jclouds.apis.Apis;
 import org.jclouds.compute.ComputeService;
 import org.jclouds.compute.ComputeServiceContext;
-import org.jclouds.compute.RunScriptOnNodesException;
 import org.jclouds.compute.config.ComputeServiceProperties;
+import org.jclouds.compute.domain.ExecResponse;
+import org.jclouds.compute.domain.Hardware;
 import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.domain.NodeMetadata.Status;
 import org.jclouds.compute.options.RunScriptOptions;
 import org.jclouds.compute.predicates.NodePredicates;
 import org.jclouds.domain.LoginCredentials;
 import org.jclouds.enterprise.config.EnterpriseConfigurationModule;
+import org.jclouds.location.reference.LocationConstants;
 import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
 import org.jclouds.providers.ProviderMetadata;
 import org.jclouds.providers.Providers;
@@ -40,9 +45,12 @@ import org.yaml.snakeyaml.Yaml;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
+import com.google.common.io.BaseEncoding;
 import com.google.common.io.Files;
 import com.google.inject.Module;
 
+import dk.kaspergsm.stormdeploy.artifacts.Artifact;
+import dk.kaspergsm.stormdeploy.artifacts.ArtifactMirror;
 import dk.kaspergsm.stormdeploy.userprovided.Configuration;
 import dk.kaspergsm.stormdeploy.userprovided.Credential;
 
@@ -106,21 +114,43 @@ public class Tools {
 		properties.setProperty(Constants.PROPERTY_MAX_CONNECTION_REUSE, "10");
 		properties.setProperty(Constants.PROPERTY_MAX_RETRIES, "999999");
 		
+		// Only query the configured region (otherwise listing nodes describes instances in every region)
+		if (conf.getDeploymentLocation() != null)
+			properties.setProperty(LocationConstants.PROPERTY_REGIONS, conf.getDeploymentLocation());
+		
 		// inject ssh implementation
 		Iterable<Module> modules = ImmutableSet.<Module> of(new SshjSshClientModule(), new SLF4JLoggingModule(), new EnterpriseConfigurationModule());
 		return ContextBuilder.newBuilder("aws-ec2").credentials(cred.get_ec2_identity(), cred.get_ec2_credential()).modules(modules).overrides(properties).buildView(ComputeServiceContext.class);
 	}
 	
 	/**
-	 * Run set of queued commands now
+	 * Get all running nodes of cluster (i.e. in group clustername, and started by this tool)
 	 */
-	public static void executeOnNodes(List<Statement> commands, boolean runAsRoot, String clustername, ComputeService compute, Configuration config) throws RunScriptOnNodesException, InterruptedException, ExecutionException, TimeoutException {
-		String taskname = "Setup";
-		if (!runAsRoot)
-			taskname ="User-Setup";
-
-		compute.runScriptOnNodesMatching(
-				NodePredicates.runningInGroup(clustername),
+	public static Set<NodeMetadata> getClusterNodes(String clustername, ComputeService compute) {
+		HashSet<NodeMetadata> ret = new HashSet<NodeMetadata>();
+		for (NodeMetadata n : compute.listNodesDetailsMatching(NodePredicates.inGroup(clustername.toLowerCase()))) {
+			if (n.getStatus() != Status.TERMINATED && n.getUserMetadata().containsKey("daemons"))
+				ret.add(n);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Get map{hardware id (instanceType), hardware profile}
+	 */
+	public static Map<String, Hardware> getHardwareProfiles(ComputeService compute) {
+		HashMap<String, Hardware> ret = new HashMap<String, Hardware>();
+		for (Hardware h : compute.listHardwareProfiles())
+			ret.put(h.getId(), h);
+		return ret;
+	}
+	
+	/**
+	 * Run set of queued commands now, on a single node
+	 */
+	public static ExecResponse executeOnNode(NodeMetadata node, List<Statement> commands, boolean runAsRoot, String taskname, ComputeService compute, Configuration config) {
+		return compute.runScriptOnNode(
+				node.getId(),
 				new StatementList(commands),
 				new RunScriptOptions()
 					.nameTask(taskname)
@@ -131,44 +161,28 @@ public class Tools {
 				 	.runAsRoot(runAsRoot));
 	}
 	
-	public static void setSchedulerMetaData(HashMap<Integer, NodeMetadata> nodes, ComputeService compute, Configuration config) {
-		int nodeCount=0;
-		for(int node: nodes.keySet()) {
-			NodeMetadata n = nodes.get(node);
-			String nodeId = nodes.get(node).getId();
-			List<Statement> commands = new ArrayList<Statement>();
-			
-			String nodeName="";
+	/**
+	 * Get map{node id, scheduler name}
+	 * 	master is named spout, workers are named node0...nodeX in order of node id
+	 */
+	public static HashMap<Integer, String> getSchedulerNodeNames(HashMap<Integer, NodeMetadata> nodes) {
+		ArrayList<Integer> nodeIds = new ArrayList<Integer>(nodes.keySet());
+		Collections.sort(nodeIds);
+		
+		int nodeCount = 0;
+		HashMap<Integer, String> nodeNames = new HashMap<Integer, String>();
+		for (int nodeId : nodeIds) {
+			NodeMetadata n = nodes.get(nodeId);
 			if (n.getUserMetadata().containsKey("daemons") && n.getUserMetadata().get("daemons").contains("MASTER")) {
-				// this is the master node
-				nodeName = "spout";
-				String scheduler = config.getSchedulerPath();
-				commands.addAll(Tools.download("~/storm/lib/", scheduler, false, false, "Storm-Scheduler.jar"));
+				nodeNames.put(nodeId, "spout");
 			} else if (n.getUserMetadata().containsKey("daemons") && n.getUserMetadata().get("daemons").contains("WORKER")) {
-				// RecBolt, assign node0....nodeX
-				nodeName = "node"+nodeCount;
+				nodeNames.put(nodeId, "node" + nodeCount);
 				nodeCount++;
-			} else {
-				continue;
 			}
-			commands.add(exec("cd ~/storm/conf/"));
-			commands.add(exec("echo storm.scheduler: \\\"de.unifreiburg.informatik.websci.scheduler.DistributedFixedScheduler\\\" >> storm.yaml"));
-			commands.add(exec("echo supervisor.scheduler.meta: >> storm.yaml"));
-			commands.add(exec("echo -n \"  \" >> storm.yaml"));
-			commands.add(exec("echo name: \\\""+nodeName+"\\\" >> storm.yaml"));
-			compute.runScriptOnNode(nodeId, new StatementList(commands), new RunScriptOptions()
-					.nameTask("User-Setup-Scheduler")
-				 	.overrideLoginCredentials(Tools.getPrivateKeyCredentials(config))
-				 	.wrapInInitScript(false)
-				 	.overrideLoginUser(config.getImageUsername())
-				 	.blockOnComplete(true)
-				 	.runAsRoot(false));
 		}
-		
+		return nodeNames;
 	}
 	
-	
-	
 	public static String getWorkDir() {
 		return _workDir;
 	}
@@ -180,6 +194,7 @@ public class Tools {
 	/**
 	 * Get ports to open
 	 * 	22 = SSH, 6627 = Thrift, 8080 = UI, 80 = GANGLIA UI, 8000 = Logviewer, 3772 = DRPC
+	 * 	Pacemaker (Storm.PACEMAKER_PORT) and the artifact mirror (NodeArtifactMirror.PORT) are only used by nodes of the cluster, which reach each other within the security group
 	 */
 	public static int[] getPortsToOpen() {
             return new int[]{22, 6627, 8080, 80, 8000, 3772};
@@ -227,12 +242,47 @@ public class Tools {
 	}
 
 	/**
-	 * Used to read local file, and echo into remote file
+	 * Write local file to remotePath, replacing any existing file
 	 */
-	public static List<Statement> echoFile(String localPath, String remotePath) {
+	public static List<Statement> uploadFile(String localPath, String remotePath) {
+		try {
+			return writeFile(Files.toByteArray(new File(localPath)), remotePath);
+		} catch (IOException ex) {
+			log.error("Problem reading " + localPath, ex);
+		}
+		return new ArrayList<Statement>();
+	}
+	
+	/**
+	 * Write content to remotePath, replacing any existing file
+	 */
+	public static List<Statement> writeFile(String content, String remotePath) {
+		return writeFile(content.getBytes(UTF_8), remotePath);
+	}
+	
+	/**
+	 * Append line to remotePath, unless the file already contains it (so setup can be executed again).
+	 * 	line is single quoted, so it must not contain single quotes
+	 */
+	public static Statement appendLine(String line, String remotePath) {
+		return exec("grep -qxF '" + line + "' " + remotePath + " 2> /dev/null || echo '" + line + "' >> " + remotePath);
+	}
+	
+	/**
+	 * The file is shipped as a single statement, holding the gzip compressed content encoded as base64.
+	 * 	Base64 contains no quotes, so content is never interpreted by the shell
+	 */
+	private static List<Statement> writeFile(byte[] content, String remotePath) {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try {
+			GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+			gzip.write(content);
+			gzip.close();
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
 		ArrayList<Statement> st = new ArrayList<Statement>();
-		for (String l : readFile(localPath).split("\n"))
-			st.add(exec("echo '" + l + "' >> " + remotePath));
+		st.add(exec("echo '" + BaseEncoding.base64().encode(compressed.toByteArray()) + "' | base64 -d | gunzip -c > " + remotePath));
 		return st;
 	}
 	
@@ -245,6 +295,15 @@ public class Tools {
 	 * RemotePath should always be downloadable by wget
 	 */
 	public static List<Statement> download(String localPath, String remotePath, boolean extract, boolean delete, String finalName) {
+		return download(localPath, remotePath, extract, delete, finalName, null);
+	}
+	
+	/**
+	 * Download, extract, remove and rename if necessary
+	 * 	If remotePath is mirrored, the file is downloaded from the mirror and verified by sha256.
+	 * 	If that fails, the file is downloaded from remotePath
+	 */
+	public static List<Statement> download(String localPath, String remotePath, boolean extract, boolean delete, String finalName, ArtifactMirror mirror) {
 		ArrayList<Statement> st = new ArrayList<Statement>();
 		st.add(exec("cd " + localPath));
 		
@@ -252,7 +311,11 @@ public class Tools {
 		String filename = remotePath.substring(remotePath.lastIndexOf("/") + 1);
 		
 		// Download file
-		st.add(exec("wget -N " + remotePath));
+		Artifact artifact = (mirror != null) ? mirror.getArtifact(remotePath) : null;
+		if (artifact != null)
+			st.add(exec("wget -q -O " + filename + " " + mirror.getUrl(artifact) + " && echo \"" + artifact.getSha256() + "  " + filename + "\" | sha256sum -c --status - || wget -O " + filename + " " + remotePath));
+		else
+			st.add(exec("wget -N " + remotePath));
 		
 		// Extract file
 		if (extract) {
@@ -269,7 +332,7 @@ public class Tools {
 			 if (index > 0) {
 				 filename = filename.substring(0, filename.lastIndexOf(".tar"));
 			 }
-			 String testAndMove = "[ ! -e " + finalName + " ] && mv " + filename + " " + finalName;
+			 String testAndMove = "[ -e " + finalName + " ] || mv " + filename + " " + finalName;
 			 st.add(exec(testAndMove));
 		}
 		return st;
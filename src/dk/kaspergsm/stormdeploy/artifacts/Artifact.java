@@ -0,0 +1,60 @@
+package dk.kaspergsm.stormdeploy.artifacts;
+
+import java.io.File;
+
+/**
+ * Artifact (e.g. a tarball) downloaded and verified by the ArtifactCache
+ * 
+ * @author Kasper Grud Skat Madsen
+ */
+public class Artifact {
+	private final String _remoteLocation, _name, _sha256;
+	private final File _file;
+	
+	public Artifact(String remoteLocation, String name, String sha256, File file) {
+		_remoteLocation = remoteLocation;
+		_name = name;
+		_sha256 = sha256;
+		_file = file;
+	}
+	
+	/**
+	 * Location the artifact was originally downloaded from
+	 */
+	public String getRemoteLocation() {
+		return _remoteLocation;
+	}
+	
+	/**
+	 * Filename of artifact
+	 */
+	public String getName() {
+		return _name;
+	}
+	
+	/**
+	 * SHA-256 of content, as lowercase hex
+	 */
+	public String getSha256() {
+		return _sha256;
+	}
+	
+	/**
+	 * Local copy of artifact
+	 */
+	public File getFile() {
+		return _file;
+	}
+	
+	/**
+	 * Path of artifact relative to the root of a cache or mirror
+	 */
+	public String getPath() {
+		return _sha256 + "/" + _name;
+	}
+	
+	@Override
+	public String toString() {
+		return _name + " (sha256 " + _sha256 + ")";
+	}
+}
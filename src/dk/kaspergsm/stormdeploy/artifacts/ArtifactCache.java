@@ -0,0 +1,147 @@
+package dk.kaspergsm.stormdeploy.artifacts;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import dk.kaspergsm.stormdeploy.Tools;
+import dk.kaspergsm.stormdeploy.userprovided.Configuration;
+
+/**
+ * Content-addressed cache of artifacts, stored as <dir>/<sha256>/<filename>.
+ * 	index.properties maps each remote location (which contains the version) to the sha256 of its content,
+ * 	so every artifact is downloaded once, and verified each time it is used.
+ * 
+ * @author Kasper Grud Skat Madsen
+ */
+public class ArtifactCache {
+	private static Logger log = LoggerFactory.getLogger(ArtifactCache.class);
+	private static final int MAX_REDIRECTS = 5;
+	private final File _dir, _index;
+	
+	public ArtifactCache(File dir) {
+		_dir = dir;
+		_index = new File(dir, "index.properties");
+	}
+	
+	/**
+	 * Returns cached artifacts for Storm and Zookeeper.
+	 * 	Returns empty list if artifact cache is disabled, or any artifact could not be cached
+	 */
+	public static List<Artifact> getArtifacts(Configuration config) {
+		ArrayList<Artifact> artifacts = new ArrayList<Artifact>();
+		if (!config.isArtifactCache())
+			return artifacts;
+		
+		ArtifactCache cache = new ArtifactCache(new File(Tools.getWorkDir() + "artifacts"));
+		try {
+			artifacts.add(cache.get(config.getStormRemoteLocation()));
+			artifacts.add(cache.get(config.getZKLocation()));
+		} catch (IOException ex) {
+			log.error("Problem caching artifacts, nodes will download directly", ex);
+			artifacts.clear();
+		}
+		return artifacts;
+	}
+	
+	/**
+	 * Get artifact from cache, downloading it if missing or corrupt
+	 */
+	public synchronized Artifact get(String remoteLocation) throws IOException {
+		String name = remoteLocation.substring(remoteLocation.lastIndexOf("/") + 1);
+		Properties index = readIndex();
+		
+		String sha256 = index.getProperty(remoteLocation);
+		if (sha256 != null) {
+			File cached = new File(new File(_dir, sha256), name);
+			if (cached.isFile() && Files.hash(cached, Hashing.sha256()).toString().equals(sha256))
+				return new Artifact(remoteLocation, name, sha256, cached);
+			log.warn("Cached " + name + " is missing or corrupt");
+		}
+		
+		log.info("Downloading " + remoteLocation + " to artifact cache");
+		_dir.mkdirs();
+		File tmp = File.createTempFile(name, ".part", _dir);
+		try {
+			HashingInputStream in = new HashingInputStream(Hashing.sha256(), open(remoteLocation));
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				ByteStreams.copy(in, out);
+			} finally {
+				in.close();
+				out.close();
+			}
+			sha256 = in.hash().toString();
+			
+			File cached = new File(new File(_dir, sha256), name);
+			cached.getParentFile().mkdirs();
+			Files.move(tmp, cached);
+			index.setProperty(remoteLocation, sha256);
+			writeIndex(index);
+			
+			log.info("Cached " + name + " (sha256 " + sha256 + ")");
+			return new Artifact(remoteLocation, name, sha256, cached);
+		} finally {
+			tmp.delete();
+		}
+	}
+	
+	/**
+	 * Open url, following redirects (also from http to https)
+	 */
+	private static InputStream open(String url) throws IOException {
+		for (int i = 0; i < MAX_REDIRECTS; i++) {
+			URLConnection conn = new URL(url).openConnection();
+			if (conn instanceof HttpURLConnection) {
+				HttpURLConnection http = (HttpURLConnection) conn;
+				http.setInstanceFollowRedirects(false);
+				int status = http.getResponseCode();
+				if (status >= 300 && status < 400 && http.getHeaderField("Location") != null) {
+					url = new URL(new URL(url), http.getHeaderField("Location")).toString();
+					http.disconnect();
+					continue;
+				}
+				if (status != HttpURLConnection.HTTP_OK)
+					throw new IOException("Unexpected response " + status + " for " + url);
+			}
+			return conn.getInputStream();
+		}
+		throw new IOException("Too many redirects for " + url);
+	}
+	
+	private Properties readIndex() throws IOException {
+		Properties index = new Properties();
+		if (_index.isFile()) {
+			InputStream in = new FileInputStream(_index);
+			try {
+				index.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		return index;
+	}
+	
+	private void writeIndex(Properties index) throws IOException {
+		OutputStream out = new FileOutputStream(_index);
+		try {
+			index.store(out, "remote location = sha256");
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package dk.kaspergsm.stormdeploy.artifacts;
+
+/**
+ * Location nodes download cached artifacts from.
+ * 	Artifacts are laid out as in the ArtifactCache, i.e. <root>/<sha256>/<filename>
+ * 
+ * @author Kasper Grud Skat Madsen
+ */
+public interface ArtifactMirror {
+	
+	/**
+	 * Returns mirrored artifact for remoteLocation, or null if remoteLocation is not mirrored
+	 */
+	public Artifact getArtifact(String remoteLocation);
+	
+	/**
+	 * Returns url to download artifact from
+	 */
+	public String getUrl(Artifact artifact);
+}
@@ -0,0 +1,145 @@
+package dk.kaspergsm.stormdeploy.artifacts;
+
+import static org.jclouds.scriptbuilder.domain.Statements.exec;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.ExecResponse;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.scriptbuilder.domain.Statement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import dk.kaspergsm.stormdeploy.ConfigurationPipeline;
+import dk.kaspergsm.stormdeploy.Tools;
+import dk.kaspergsm.stormdeploy.userprovided.Configuration;
+
+/**
+ * Distributes artifacts through a tree of nodes, rooted at the mirror.
+ * 	Node i (in order of node id) downloads from node (i-1)/fanout, and serves the artifacts to its own children,
+ * 	so no node serves more than fanout nodes, and distribution time grows with log(N) instead of N.
+ * 	A node waits for its parent to complete, even if the parent failed, as each download falls back to the remote location.
+ * 
+ * @author Kasper Grud Skat Madsen
+ */
+public class ArtifactTree {
+	private static Logger log = LoggerFactory.getLogger(ArtifactTree.class);
+	private static final String TRANSFER = "SDA-TRANSFER";
+	private static final int PARENT_TIMEOUT = 30;
+	
+	/**
+	 * Mirror nodes download from, after their artifacts have been distributed
+	 */
+	public static ArtifactMirror getLocalMirror(Collection<Artifact> artifacts) {
+		return new HttpArtifactMirror("http://127.0.0.1:" + NodeArtifactMirror.PORT, artifacts);
+	}
+	
+	/**
+	 * Schedule a Distribute stage on all nodes, except rootNode, returns map{node id, stage completing when node serves all artifacts}.
+	 * 	Failure of a node does not fail its subtree, children download from the remote location instead
+	 * 
+	 * @param root
+	 *            Mirror at the root of the tree
+	 * @param rootNode
+	 *            Node serving root, or null if root is outside the cluster
+	 * @param rootReady
+	 *            Completes when root serves all artifacts
+	 */
+	public static HashMap<Integer, ListenableFuture<Void>> distribute(ConfigurationPipeline pipeline, final ComputeService compute, final Configuration config, ArtifactMirror root, NodeMetadata rootNode, ListenableFuture<Void> rootReady, HashMap<Integer, NodeMetadata> nodes, Collection<Artifact> artifacts, int fanout) {
+		ArrayList<ArtifactMirror> treeMirrors = new ArrayList<ArtifactMirror>();
+		ArrayList<ListenableFuture<Void>> treeReady = new ArrayList<ListenableFuture<Void>>();
+		treeMirrors.add(root);
+		treeReady.add(rootReady);
+		
+		HashMap<Integer, ListenableFuture<Void>> distributed = new HashMap<Integer, ListenableFuture<Void>>();
+		ArrayList<Integer> nodeIds = new ArrayList<Integer>(nodes.keySet());
+		Collections.sort(nodeIds);
+		for (int nodeId : nodeIds) {
+			final NodeMetadata n = nodes.get(nodeId);
+			if (n.equals(rootNode)) {
+				distributed.put(nodeId, rootReady);
+				continue;
+			}
+			
+			int parent = (treeMirrors.size() - 1) / fanout;
+			final List<Statement> commands = fetchAndServe(treeMirrors.get(parent), artifacts);
+			ListenableFuture<Void> ready = pipeline.task("Distribute", n, new Callable<Void>() {
+				@Override
+				public Void call() {
+					ExecResponse response = Tools.executeOnNode(n, commands, false, "Distribute", compute, config);
+					logThroughput(n, response.getOutput());
+					return null;
+				}
+			}, ImmutableList.of(completed(treeReady.get(parent))));
+			
+			treeMirrors.add(new NodeArtifactMirror(n, artifacts));
+			treeReady.add(ready);
+			distributed.put(nodeId, ready);
+		}
+		return distributed;
+	}
+	
+	/**
+	 * Completes when stage has completed, successfully or not
+	 */
+	private static ListenableFuture<Void> completed(ListenableFuture<Void> stage) {
+		return Futures.transform(Futures.successfulAsList(ImmutableList.of(stage)), new Function<List<Void>, Void>() {
+			@Override
+			public Void apply(List<Void> completed) {
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Download artifacts from parent into ~/sda-artifacts, and serve them.
+	 * 	Falls back to the remote location of an artifact, if download from parent fails verification
+	 * 	(or parent does not answer within PARENT_TIMEOUT seconds)
+	 */
+	private static List<Statement> fetchAndServe(ArtifactMirror parent, Collection<Artifact> artifacts) {
+		ArrayList<Statement> st = new ArrayList<Statement>();
+		for (Artifact a : artifacts) {
+			st.add(exec("mkdir -p ~/" + NodeArtifactMirror.REMOTE_DIR + "/" + a.getSha256()));
+			st.add(exec("cd ~/" + NodeArtifactMirror.REMOTE_DIR + "/" + a.getSha256()));
+			st.add(exec("start=$(date +%s%N)"));
+			st.add(exec("wget -q -T " + PARENT_TIMEOUT + " -t 2 -O " + a.getName() + " " + parent.getUrl(a) + " && echo \"" + a.getSha256() + "  " + a.getName() + "\" | sha256sum -c --status - || wget -q -O " + a.getName() + " " + a.getRemoteLocation()));
+			st.add(exec("echo \"" + TRANSFER + " " + a.getName() + " $(stat -c %s " + a.getName() + ") $(( ($(date +%s%N) - start) / 1000000 ))\""));
+		}
+		st.addAll(NodeArtifactMirror.serve());
+		return st;
+	}
+	
+	/**
+	 * Log throughput of each transfer reported in output
+	 */
+	private static void logThroughput(NodeMetadata n, String output) {
+		String nodeName = n.getPublicAddresses().isEmpty() ? n.getId() : n.getPublicAddresses().iterator().next();
+		long totalBytes = 0, totalMillis = 0;
+		for (String line : output.split("\n")) {
+			String[] transfer = line.trim().split(" ");
+			if (transfer.length != 4 || !transfer[0].equals(TRANSFER))
+				continue;
+			try {
+				long bytes = Long.valueOf(transfer[2]), millis = Math.max(1, Long.valueOf(transfer[3]));
+				totalBytes += bytes;
+				totalMillis += millis;
+				log.debug(nodeName + " received " + transfer[1] + " at " + toMBps(bytes, millis) + " MB/s");
+			} catch (NumberFormatException ex) {
+				log.warn("Unexpected transfer report from " + nodeName + ": " + line);
+			}
+		}
+		if (totalMillis > 0)
+			log.info(nodeName + " received " + (totalBytes / 1024 / 1024) + " MB in " + totalMillis + " ms (" + toMBps(totalBytes, totalMillis) + " MB/s)");
+	}
+	
+	private static long toMBps(long bytes, long millis) {
+		return bytes * 1000 / millis / (1024 * 1024);
+	}
+}
@@ -0,0 +1,35 @@
+package dk.kaspergsm.stormdeploy.artifacts;
+
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Mirror served by any http server, rooted at baseUrl.
+ * 	E.g. serving the local artifact cache with "python -m SimpleHTTPServer" is a stand-in for the in-cluster mirror
+ * 
+ * @author Kasper Grud Skat Madsen
+ */
+public class HttpArtifactMirror implements ArtifactMirror {
+	private final HashMap<String, Artifact> _artifacts = new HashMap<String, Artifact>();
+	private final String _baseUrl;
+	
+	public HttpArtifactMirror(String baseUrl, Collection<Artifact> artifacts) {
+		_baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+		for (Artifact a : artifacts)
+			_artifacts.put(a.getRemoteLocation(), a);
+	}
+	
+	@Override
+	public Artifact getArtifact(String remoteLocation) {
+		return _artifacts.get(remoteLocation);
+	}
+	
+	@Override
+	public String getUrl(Artifact artifact) {
+		return _baseUrl + "/" + artifact.getPath();
+	}
+	
+	public Collection<Artifact> getArtifacts() {
+		return _artifacts.values();
+	}
+}
@@ -0,0 +1,73 @@
+package dk.kaspergsm.stormdeploy.artifacts;
+
+import static org.jclouds.scriptbuilder.domain.Statements.exec;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.ExecResponse;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.domain.NodeMetadataBuilder;
+import org.jclouds.io.Payloads;
+import org.jclouds.scriptbuilder.domain.Statement;
+import org.jclouds.ssh.SshClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import dk.kaspergsm.stormdeploy.Tools;
+import dk.kaspergsm.stormdeploy.userprovided.Configuration;
+
+/**
+ * Mirror served by a node in the cluster, over the private network.
+ * 	Artifacts are seeded from the local cache over sftp, and served from ~/sda-artifacts on port 8090
+ * 
+ * @author Kasper Grud Skat Madsen
+ */
+public class NodeArtifactMirror extends HttpArtifactMirror {
+	private static Logger log = LoggerFactory.getLogger(NodeArtifactMirror.class);
+	public static final int PORT = 8090;
+	public static final String REMOTE_DIR = "sda-artifacts";
+	private final NodeMetadata _node;
+	
+	public NodeArtifactMirror(NodeMetadata node, Collection<Artifact> artifacts) {
+		super("http://" + node.getPrivateAddresses().iterator().next() + ":" + PORT, artifacts);
+		_node = node;
+	}
+	
+	/**
+	 * Upload all artifacts to node (skipping artifacts already present), and start serving them
+	 */
+	public void seed(ComputeService compute, Configuration config) {
+		SshClient ssh = compute.getContext().utils().sshForNode().apply(
+				NodeMetadataBuilder.fromNodeMetadata(_node).credentials(Tools.getPrivateKeyCredentials(config)).build());
+		try {
+			ssh.connect();
+			for (Artifact a : getArtifacts()) {
+				String remotePath = REMOTE_DIR + "/" + a.getPath();
+				ExecResponse existing = ssh.exec("sha256sum " + remotePath);
+				if (existing.getExitStatus() == 0 && existing.getOutput().startsWith(a.getSha256())) {
+					log.info("Artifact " + a.getName() + " already seeded to " + ssh.getHostAddress());
+					continue;
+				}
+				
+				long start = System.currentTimeMillis();
+				ssh.exec("mkdir -p " + REMOTE_DIR + "/" + a.getSha256());
+				ssh.put(remotePath, Payloads.newFilePayload(a.getFile()));
+				log.info("Seeded " + a.getName() + " to " + ssh.getHostAddress() + " in " + (System.currentTimeMillis() - start) / 1000 + "s");
+			}
+		} finally {
+			ssh.disconnect();
+		}
+		Tools.executeOnNode(_node, serve(), false, "Serve-Artifacts", compute, config);
+	}
+	
+	/**
+	 * Serve ~/sda-artifacts over http, in the background
+	 */
+	public static List<Statement> serve() {
+		ArrayList<Statement> st = new ArrayList<Statement>();
+		st.add(exec("mkdir -p ~/" + REMOTE_DIR));
+		st.add(exec("cd ~/" + REMOTE_DIR));
+		st.add(exec("if command -v python3 > /dev/null; then nohup python3 -m http.server " + PORT + " > /dev/null 2>&1 & else nohup python -m SimpleHTTPServer " + PORT + " > /dev/null 2>&1 & fi"));
+		return st;
+	}
+}
@@ -1,76 +1,80 @@
 package dk.kaspergsm.stormdeploy.commands;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import org.jclouds.compute.ComputeServiceContext;
-import org.jclouds.compute.domain.NodeMetadata;
-import org.jclouds.compute.domain.NodeMetadata.Status;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import dk.kaspergsm.stormdeploy.ClusterState;
+import dk.kaspergsm.stormdeploy.Tools;
 import dk.kaspergsm.stormdeploy.configurations.Storm;
 
 public class Attach {
 	private static Logger log = LoggerFactory.getLogger(Attach.class);
+	private static final int MAX_STATE_AGE_HOURS = 24;
 
 	/**
-	 * Attaches to cluster
+	 * Attaches to cluster, using the current running nodes (cluster state is updated)
 	 */
-	@SuppressWarnings("unchecked")
 	public static void attach(String clustername, ComputeServiceContext computeContext) {	
 		
 		/**
 		 * Parse current running nodes for cluster
 		 */
-		ArrayList<NodeMetadata> zkNodes = new ArrayList<NodeMetadata>();
-		ArrayList<NodeMetadata> workerNodes = new ArrayList<NodeMetadata>();
-		NodeMetadata nimbus = null;
-		NodeMetadata ui = null;
-		for (NodeMetadata n : (Set<NodeMetadata>) computeContext.getComputeService().listNodes()) {			
-			if (n.getStatus() != Status.TERMINATED &&
-					n.getGroup() != null &&
-					n.getGroup().toLowerCase().equals(clustername.toLowerCase()) &&
-					n.getUserMetadata().containsKey("daemons")) {
-				String daemons = n.getUserMetadata().get("daemons").replace("[", "").replace("]", "");
-				
-				for (String daemon : daemons.split(",")) {
-					if (daemon.trim().toLowerCase().equals("master"))
-						nimbus = n;
-					if (daemon.trim().toLowerCase().equals("worker"))
-						workerNodes.add(n);
-					if (daemon.trim().toLowerCase().equals("zk"))
-						zkNodes.add(n);
-					if (daemon.trim().toLowerCase().equals("ui"))
-						ui = n;
-				}
-			}
+		ClusterState state = ClusterState.fromNodes(clustername, Tools.getClusterNodes(clustername, computeContext.getComputeService()));
+		if (state.getPublicIp("MASTER") == null) {
+			log.error("No running cluster with name " + clustername);
+			ClusterState.delete(clustername);
+			return;
+		}
+		try {
+			state.write();
+		} catch (IOException ex) {
+			log.error("Problem writing cluster state", ex);
 		}
 		
 		/**
 		 * Update attachment
 		 */
+		attach(state);
+	}
+	
+	/**
+	 * Attaches to cluster, using the local cluster state if it was updated within the last MAX_STATE_AGE_HOURS.
+	 * 	Does not contact the cloud provider. Returns false if there is no usable cluster state,
+	 * 	then attach using the current running nodes instead (which refreshes the cluster state)
+	 */
+	public static boolean attachCached(String clustername) {
+		ClusterState state = ClusterState.read(clustername);
+		if (state == null || state.getPublicIp("MASTER") == null)
+			return false;
+		
+		long age = System.currentTimeMillis() - state.getUpdated();
+		if (age > TimeUnit.HOURS.toMillis(MAX_STATE_AGE_HOURS)) {
+			log.info("Cluster state is older than " + MAX_STATE_AGE_HOURS + "h, refreshing");
+			return false;
+		}
+		
+		attach(state);
+		log.info("Used cluster state from " + age / 1000 + "s ago");
+		return true;
+	}
+	
+	private static void attach(ClusterState state) {
 		try {
 			String uiPublicAddress = "";
-			if (ui != null)
-				uiPublicAddress = ui.getPublicAddresses().iterator().next();
+			if (state.getPublicIp("UI") != null)
+				uiPublicAddress = state.getPublicIp("UI");
 			
 			Storm.writeStormAttachConfigFiles(
-					getInstancesPublicIp(zkNodes), 
-					getInstancesPublicIp(workerNodes), 
-					nimbus.getPublicAddresses().iterator().next(),
+					state.getPublicIps("ZK"), 
+					state.getPublicIps("WORKER"), 
+					state.getPublicIp("MASTER"),
 					uiPublicAddress,
-					clustername);
+					state.getClustername());
 			log.info("Attached to cluster");
 		} catch (IOException ex) {
 			log.error("Problem attaching to cluster", ex);
 		}
 	}
-	
-	private static List<String> getInstancesPublicIp(ArrayList<NodeMetadata> nodes) {
-		ArrayList<String> newNodes = new ArrayList<String>();
-		for (NodeMetadata n : nodes)
-			newNodes.add(n.getPublicAddresses().iterator().next());
-		return newNodes;
-	}
 }
@@ -0,0 +1,99 @@
+package dk.kaspergsm.stormdeploy.commands;
+
+import static org.jclouds.scriptbuilder.domain.Statements.exec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.ComputeServiceContext;
+import org.jclouds.compute.domain.ExecResponse;
+import org.jclouds.compute.domain.Image;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.extensions.ImageExtension;
+import org.jclouds.scriptbuilder.domain.Statement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.google.common.base.Optional;
+import dk.kaspergsm.stormdeploy.LaunchNodeTask;
+import dk.kaspergsm.stormdeploy.Tools;
+import dk.kaspergsm.stormdeploy.configurations.BakedImage;
+import dk.kaspergsm.stormdeploy.configurations.NodeConfiguration;
+import dk.kaspergsm.stormdeploy.userprovided.Configuration;
+import dk.kaspergsm.stormdeploy.userprovided.Credential;
+
+/**
+ * Called to bake an image, with all packages and downloads which do not depend on the cluster.
+ * 	Nodes launched from the image skip the baked steps automatically (see BakedImage)
+ * 
+ * @author Kasper Grud Skat Madsen
+ */
+public class Bake {
+	private static Logger log = LoggerFactory.getLogger(Bake.class);
+	
+	public static void bake(String clustername, String instanceType, Credential credentials, Configuration config, ComputeServiceContext computeContext) {
+		ComputeService compute = computeContext.getComputeService();
+		Optional<ImageExtension> imageExtension = compute.getImageExtension();
+		if (!imageExtension.isPresent()) {
+			log.error("Cloud provider does not support creating images");
+			System.exit(0);
+		}
+		
+		
+		/**
+		 * Start node to bake. Marked as UI, so the Ganglia webinterface is also installed
+		 */
+		NodeMetadata node = null;
+		boolean failed = false;
+		try {
+			log.info("Starting instance of type " + instanceType + " to bake image from " + config.getDeploymentImage());
+			node = new LaunchNodeTask(compute, config, instanceType, clustername + "-bake", Arrays.asList(0), Arrays.asList("UI")).withoutEBSVolumes().call().get(0);
+			
+			
+			/**
+			 * Install everything not depending on the cluster
+			 */
+			long start = System.currentTimeMillis();
+			check(Tools.executeOnNode(node, NodeConfiguration.getRootPackageCommands(credentials, config), true, "Bake-Setup", compute, config), "Bake-Setup");
+			
+			List<Statement> userCommands = new ArrayList<Statement>(NodeConfiguration.getUserInstallCommands(config, null));
+			userCommands.add(exec("rm -f ~/daemons ~/.instance-type"));
+			check(Tools.executeOnNode(node, userCommands, false, "Bake-User-Setup", compute, config), "Bake-User-Setup");
+			
+			ExecResponse baked = Tools.executeOnNode(node, BakedImage.listBaked(), false, "Bake-List", compute, config);
+			log.info("Installed in " + (System.currentTimeMillis() - start) / 1000 + "s, baked steps:");
+			for (String step : baked.getOutput().split("\n")) {
+				if (step.trim().length() > 0)
+					log.info("\t" + step.trim());
+			}
+			
+			
+			/**
+			 * Create image
+			 */
+			String imageName = "sda-" + clustername + "-" + System.currentTimeMillis();
+			log.info("Creating image " + imageName + ", this takes a few minutes");
+			Image image = imageExtension.get().createImage(imageExtension.get().buildImageTemplateFromNode(imageName, node.getId())).get();
+			log.info("Created image. To use it, set the following in configuration.yaml:");
+			log.info("\t- image \"" + image.getId() + "\"");
+		} catch (Exception ex) {
+			log.error("Problem baking image", ex);
+			failed = true;
+		} finally {
+			if (node != null) {
+				log.info("Terminating instance used for baking");
+				compute.destroyNode(node.getId());
+			}
+		}
+		
+		
+		/**
+		 * Close application now
+		 */
+		System.exit(failed ? 1 : 0);
+	}
+	
+	private static void check(ExecResponse response, String taskname) {
+		if (response.getExitStatus() != 0)
+			throw new IllegalStateException(taskname + " failed with exit status " + response.getExitStatus() + ": " + response.getError());
+	}
+}
@@ -2,27 +2,43 @@ package dk.kaspergsm.stormdeploy.commands;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeoutException;
 import org.jclouds.compute.ComputeService;
 import org.jclouds.compute.ComputeServiceContext;
-import org.jclouds.compute.RunScriptOnNodesException;
+import org.jclouds.compute.domain.Hardware;
 import org.jclouds.compute.domain.NodeMetadata;
-import org.jclouds.compute.domain.NodeMetadata.Status;
+import org.jclouds.scriptbuilder.domain.Statement;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import dk.kaspergsm.stormdeploy.LaunchNodeThread;
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import dk.kaspergsm.stormdeploy.ClusterState;
+import dk.kaspergsm.stormdeploy.ConfigurationPipeline;
+import dk.kaspergsm.stormdeploy.LaunchNodeTask;
+import dk.kaspergsm.stormdeploy.NodeLauncher;
 import dk.kaspergsm.stormdeploy.Tools;
+import dk.kaspergsm.stormdeploy.artifacts.Artifact;
+import dk.kaspergsm.stormdeploy.artifacts.ArtifactCache;
+import dk.kaspergsm.stormdeploy.artifacts.ArtifactMirror;
+import dk.kaspergsm.stormdeploy.artifacts.ArtifactTree;
+import dk.kaspergsm.stormdeploy.artifacts.HttpArtifactMirror;
+import dk.kaspergsm.stormdeploy.artifacts.NodeArtifactMirror;
 import dk.kaspergsm.stormdeploy.configurations.NodeConfiguration;
+import dk.kaspergsm.stormdeploy.configurations.Scheduler;
 import dk.kaspergsm.stormdeploy.configurations.Storm;
+import dk.kaspergsm.stormdeploy.configurations.StormDeployAlternative;
+import dk.kaspergsm.stormdeploy.configurations.StormTuning;
 import dk.kaspergsm.stormdeploy.userprovided.Configuration;
 import dk.kaspergsm.stormdeploy.userprovided.Credential;
+import dk.kaspergsm.stormdeploy.userprovided.NodeDefinition;
 
 /**
  * Called to deploy a new cluster
@@ -31,6 +47,7 @@ import dk.kaspergsm.stormdeploy.userprovided.Credential;
  */
 public class Deploy {
 	private static Logger log = LoggerFactory.getLogger(Deploy.class);
+	private static final int MAX_CONCURRENT_LAUNCHES = 10;
 	
 	/**
 	 * Call to deploy a cluster
@@ -42,14 +59,22 @@ public class Deploy {
 		/**
 		 * Check no cluster with clustername is currently deployed
 		 */
-		for (NodeMetadata n : (Set<NodeMetadata>) computeContext.getComputeService().listNodes()) {
-			if (n.getStatus() != Status.TERMINATED && n.getGroup() != null &&
-					n.getGroup().toLowerCase().equals(clustername.toLowerCase())) {
-				
-				// Currently running cluster with same name was detected
-				log.error("Cluster with name " + clustername + " is already deployed");
-				return;
-			}
+		if (!Tools.getClusterNodes(clustername, computeContext.getComputeService()).isEmpty()) {
+			
+			// Currently running cluster with same name was detected
+			log.error("Cluster with name " + clustername + " is already deployed");
+			return;
+		}
+		
+		
+		/**
+		 * Nodes execute supervision and monitoring from a copy of this jar
+		 */
+		try {
+			StormDeployAlternative.getLocalJar();
+		} catch (IllegalStateException ex) {
+			log.error(ex.getMessage());
+			return;
 		}
 		
 		
@@ -57,7 +82,16 @@ public class Deploy {
 		 * Start instances
 		 */
 		log.info("Deploying cluster: " + clustername);
-		HashMap<Integer, NodeMetadata> newNodes = startNodesNow(config, computeContext.getComputeService(), clustername);
+		ConfigurationPipeline pipeline = new ConfigurationPipeline(computeContext.getComputeService(), config, config.getMaxConcurrentScripts());
+		HashMap<Integer, ListenableFuture<Void>> installed = new HashMap<Integer, ListenableFuture<Void>>();
+		List<Statement> rootInstallCommands = null;
+		if (config.isStreamingConfiguration()) {
+			log.info("Streaming configuration, nodes start installing as soon as they are running");
+			rootInstallCommands = NodeConfiguration.getRootInstallCommands(credentials, config);
+		}
+		HashMap<Integer, NodeMetadata> newNodes = startNodesNow(config, computeContext.getComputeService(), clustername, pipeline, rootInstallCommands, installed);
+		if (newNodes == null)
+			System.exit(1);
 		
 		
 		/**
@@ -76,6 +110,7 @@ public class Deploy {
 					getNimbusNode(config, newNodes).getPublicAddresses().iterator().next(),
 					uiPublicAddress, 
 					clustername);
+			ClusterState.fromNodes(clustername, newNodes.values()).write();
 		} catch (IOException ex) {
 			log.error("Problem attaching to cluster", ex);
 		}
@@ -84,51 +119,21 @@ public class Deploy {
 		/**
 		 * Configure all nodes
 		 */
+		log.info("Configuring instance(s)");
+		configureNodesNow(pipeline, clustername, credentials, config, computeContext.getComputeService(), newNodes, installed);
+		boolean configured = false;
 		try {
-			log.info("Configuring instance(s)");
-			Tools.executeOnNodes(
-					NodeConfiguration.getRootCommands(
-							clustername,
-							credentials,
-							config, 
-							getNewInstancesPrivateIp(config, "ZK", newNodes), 
-							getNewInstancesPrivateIp(config, "DRPC", newNodes), 
-							getNimbusNode(config, newNodes).getPrivateAddresses().iterator().next(), 
-							getUINode(config, newNodes).getPrivateAddresses().iterator().next()),
-					true,
-					clustername, 
-					computeContext.getComputeService(),
-					config);
-			Tools.executeOnNodes(
-					NodeConfiguration.getCommands(
-							clustername,
-							credentials,
-							config, 
-							getNewInstancesPrivateIp(config, "ZK", newNodes), 
-							getNewInstancesPrivateIp(config, "DRPC", newNodes), 
-							getNimbusNode(config, newNodes).getPrivateAddresses().iterator().next(), 
-							getUINode(config, newNodes).getPrivateAddresses().iterator().next()),
-					false,
-					clustername, 
-					computeContext.getComputeService(),
-					config);
-			
-			// scheduler meta data must be set before starting Storm
-			Tools.setSchedulerMetaData(newNodes, computeContext.getComputeService(),config);
-			Tools.executeOnNodes(NodeConfiguration.runStorm(config),
-					false,
-					clustername, 
-					computeContext.getComputeService(),
-					config);
-			
-		} catch (RunScriptOnNodesException ex) {
-			log.error("Problem configuring instance(s)", ex);
+			pipeline.awaitAll();
+			configured = true;
 		} catch (InterruptedException ex) {
 			log.error("Problem configuring instance(s)", ex);
 		} catch (ExecutionException ex) {
-			log.error("Problem configuring instance(s)", ex);
-		} catch (TimeoutException ex) {
-			log.error("Problem configuring instance(s)", ex);
+			log.error("Problem configuring instance(s)", ex.getCause());
+		}
+		pipeline.logStageTimings();
+		if (!configured) {
+			log.error("Deployment of " + clustername + " failed, instances are kept for inspection and must be removed by kill");
+			System.exit(1);
 		}
 		
 		
@@ -151,6 +156,154 @@ public class Deploy {
 		System.exit(0);
 	}
 	
+	/**
+	 * Schedule configuration of all nodes. Each node moves through its own stages
+	 * 	(root setup, user setup, scheduler meta data, start daemons) independently of other nodes.
+	 * 	Only cross-node dependencies are kept: Zookeeper is started before Nimbus,
+	 * 	and Nimbus is started before all remaining daemons.
+	 * 
+	 * 	Nodes contained in installed have already been scheduled to install (streaming configuration),
+	 * 	so only root commands depending on addresses of other nodes remain for these.
+	 */
+	private static void configureNodesNow(final ConfigurationPipeline pipeline, String clustername, Credential credentials, final Configuration config, final ComputeService compute, HashMap<Integer, NodeMetadata> nodes, HashMap<Integer, ListenableFuture<Void>> installed) {
+		
+		// Serve cached artifacts from inside the cluster, seeded to the MASTER node unless a mirror is configured
+		ListenableFuture<Void> seeded = Futures.immediateFuture(null);
+		HashMap<Integer, ListenableFuture<Void>> distributed = new HashMap<Integer, ListenableFuture<Void>>();
+		ArtifactMirror mirror = null;
+		NodeMetadata mirrorNode = null;
+		List<Artifact> artifacts = ArtifactCache.getArtifacts(config);
+		if (artifacts.size() > 0) {
+			if (config.getArtifactMirror() != null) {
+				mirror = new HttpArtifactMirror(config.getArtifactMirror(), artifacts);
+			} else {
+				mirrorNode = getNimbusNode(config, nodes);
+				final NodeArtifactMirror nodeMirror = new NodeArtifactMirror(mirrorNode, artifacts);
+				seeded = pipeline.task("Seed-Artifacts", mirrorNode, new Callable<Void>() {
+					@Override
+					public Void call() {
+						nodeMirror.seed(compute, config);
+						return null;
+					}
+				}, ImmutableList.<ListenableFuture<Void>>of());
+				mirror = nodeMirror;
+			}
+			
+			// Distribute artifacts through a tree of nodes, each node then downloads from itself
+			if (config.getArtifactFanout() > 0) {
+				distributed = ArtifactTree.distribute(pipeline, compute, config, mirror, mirrorNode, seeded, nodes, artifacts, config.getArtifactFanout());
+				mirror = ArtifactTree.getLocalMirror(artifacts);
+			}
+		}
+		
+		List<Statement> rootConfigureCommands = NodeConfiguration.getRootConfigureCommands(
+				clustername,
+				config,
+				getUINode(config, nodes).getPrivateAddresses().iterator().next());
+		List<Statement> rootCommands = NodeConfiguration.getRootCommands(
+				clustername,
+				credentials,
+				config, 
+				getNewInstancesPrivateIp(config, "ZK", nodes), 
+				getNewInstancesPrivateIp(config, "DRPC", nodes), 
+				getNimbusNode(config, nodes).getPrivateAddresses().iterator().next(), 
+				getUINode(config, nodes).getPrivateAddresses().iterator().next());
+		List<Statement> userCommands = NodeConfiguration.getCommands(
+				clustername,
+				credentials,
+				config, 
+				getNewInstancesPrivateIp(config, "ZK", nodes), 
+				getNewInstancesPrivateIp(config, "DRPC", nodes), 
+				getNewInstancesPrivateIp(config, "PACEMAKER", nodes), 
+				getNimbusNode(config, nodes).getPrivateAddresses().iterator().next(), 
+				getUINode(config, nodes).getPrivateAddresses().iterator().next(),
+				mirror);
+		HashMap<Integer, String> schedulerNodeNames = Tools.getSchedulerNodeNames(nodes);
+		Map<String, Hardware> hardwareProfiles = Tools.getHardwareProfiles(compute);
+		
+		// Per node: root setup and upload of storm-deploy-alternative.jar -> user setup (including storm.yaml tuning) -> scheduler meta data
+		HashMap<Integer, ListenableFuture<Void>> configured = new HashMap<Integer, ListenableFuture<Void>>();
+		for (Entry<Integer, NodeMetadata> e : nodes.entrySet()) {
+			final NodeMetadata n = e.getValue();
+			NodeDefinition definition = config.getNodes().get(e.getKey());
+			List<Statement> nodeCommands = new ArrayList<Statement>(userCommands);
+			nodeCommands.addAll(StormTuning.configure(
+					config,
+					"node " + e.getKey() + " (" + definition.getInstanceType() + ")",
+					hardwareProfiles.get(definition.getInstanceType()),
+					definition.getDaemons(),
+					definition.getTuning()));
+			ListenableFuture<Void> artifactsReady = distributed.containsKey(e.getKey()) ? distributed.get(e.getKey()) : seeded;
+			ListenableFuture<Void> root;
+			if (installed.containsKey(e.getKey()))
+				root = pipeline.stage("Setup-Configure", n, rootConfigureCommands, true, ImmutableList.of(installed.get(e.getKey())));
+			else
+				root = pipeline.stage("Setup", n, rootCommands, true, ImmutableList.<ListenableFuture<Void>>of());
+			ListenableFuture<Void> uploaded = pipeline.task("Upload-SDA", n, new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					StormDeployAlternative.uploadJar(n, compute, config);
+					return null;
+				}
+			}, ImmutableList.<ListenableFuture<Void>>of());
+			
+
+			// scheduler meta data must be set before starting Storm
+			List<Statement> schedulerCommands = Scheduler.configure(
+					schedulerNodeNames.get(e.getKey()),
+					definition.getInstanceType(),
+					hardwareProfiles.get(definition.getInstanceType()),
+					definition.getDaemons(),
+					definition.getTuning(),
+					n,
+					config);
+			if (config.isSchedulerMetaInline()) {
+				nodeCommands.addAll(schedulerCommands);
+				configured.put(e.getKey(), pipeline.stage("User-Setup", n, nodeCommands, false, ImmutableList.of(root, artifactsReady, uploaded)));
+			} else {
+				ListenableFuture<Void> user = pipeline.stage("User-Setup", n, nodeCommands, false, ImmutableList.of(root, artifactsReady, uploaded));
+				configured.put(e.getKey(), pipeline.stage("User-Setup-Scheduler", n, schedulerCommands, false, ImmutableList.of(user)));
+			}
+		}
+		
+		// Start Zookeeper, as soon as each ZK node is configured
+		ArrayList<ListenableFuture<Void>> zookeeperStarted = new ArrayList<ListenableFuture<Void>>();
+		for (Entry<Integer, NodeMetadata> e : nodes.entrySet()) {
+			if (hasDaemon(e.getValue(), "ZK"))
+				zookeeperStarted.add(pipeline.stage("Start-Zookeeper", e.getValue(), NodeConfiguration.startZookeeper(config), false, ImmutableList.of(configured.get(e.getKey()))));
+		}
+		
+		// Zookeeper is ready, when every ZK node serves requests (quorum is formed once enough nodes are started)
+		ArrayList<ListenableFuture<Void>> zookeeperReady = new ArrayList<ListenableFuture<Void>>();
+		for (Entry<Integer, NodeMetadata> e : nodes.entrySet()) {
+			if (hasDaemon(e.getValue(), "ZK"))
+				zookeeperReady.add(pipeline.check("Await-Zookeeper", e.getValue(), NodeConfiguration.awaitDaemons(config, "ZK"), zookeeperStarted));
+		}
+		
+		// Start Pacemaker and Nimbus, when all of Zookeeper is ready
+		ArrayList<ListenableFuture<Void>> nimbusReady = new ArrayList<ListenableFuture<Void>>();
+		for (Entry<Integer, NodeMetadata> e : nodes.entrySet()) {
+			if (hasDaemon(e.getValue(), "MASTER") || hasDaemon(e.getValue(), "PACEMAKER")) {
+				ArrayList<ListenableFuture<Void>> dependencies = new ArrayList<ListenableFuture<Void>>(zookeeperReady);
+				dependencies.add(configured.get(e.getKey()));
+				ListenableFuture<Void> nimbusStarted = pipeline.stage("Start-Nimbus", e.getValue(), NodeConfiguration.startNimbus(config), false, dependencies);
+				nimbusReady.add(pipeline.check("Await-Nimbus", e.getValue(), NodeConfiguration.awaitDaemons(config, "PACEMAKER", "MASTER"), ImmutableList.of(nimbusStarted)));
+			}
+		}
+		
+		// Start remaining daemons, when Nimbus is ready
+		for (Entry<Integer, NodeMetadata> e : nodes.entrySet()) {
+			ArrayList<ListenableFuture<Void>> dependencies = new ArrayList<ListenableFuture<Void>>(nimbusReady);
+			dependencies.add(configured.get(e.getKey()));
+			ListenableFuture<Void> started = pipeline.stage("Start-Daemons", e.getValue(), NodeConfiguration.startDaemons(config), false, dependencies);
+			pipeline.check("Await-Daemons", e.getValue(), NodeConfiguration.awaitDaemons(config, "UI", "DRPC", "LOGVIEWER"), ImmutableList.of(started));
+		}
+	}
+	
+	private static boolean hasDaemon(NodeMetadata n, String daemon) {
+		return n.getUserMetadata().containsKey("daemons") && n.getUserMetadata().get("daemons").contains(daemon);
+	}
+	
 	private static NodeMetadata getNimbusNode(Configuration config, HashMap<Integer, NodeMetadata> nodes) {
 		for (NodeMetadata n : nodes.values()) {
 			if (n.getUserMetadata().containsKey("daemons") && n.getUserMetadata().get("daemons").contains("MASTER"))
@@ -193,15 +346,21 @@ public class Deploy {
 		return newNodes;
 	}
 	
-	private static HashMap<Integer, NodeMetadata> startNodesNow(Configuration config, ComputeService compute, String clustername) {	
+	/**
+	 * Start all nodes, returns map{node id, started node}.
+	 * 	If rootInstallCommands is provided, these are scheduled on nodes as soon as they are running (streaming configuration),
+	 * 	and installed is filled with map{node id, install stage}.
+	 */
+	private static HashMap<Integer, NodeMetadata> startNodesNow(Configuration config, ComputeService compute, String clustername, final ConfigurationPipeline pipeline, final List<Statement> rootInstallCommands, HashMap<Integer, ListenableFuture<Void>> installed) {	
 
-		// To maintain worker threads
-		ArrayList<LaunchNodeThread> workerThreads = new ArrayList<LaunchNodeThread>();
+		// To maintain launches
+		NodeLauncher launcher = new NodeLauncher(compute, MAX_CONCURRENT_LAUNCHES);
+		ArrayList<ListenableFuture<HashMap<Integer, ListenableFuture<Void>>>> installing = new ArrayList<ListenableFuture<HashMap<Integer, ListenableFuture<Void>>>>();
 				
 		/**
 		 * Loop each unique set of daemons
 		 */
-		for (Entry<ArrayList<String>, ArrayList<Integer>> daemonsToNodeIds : config.getDaemonsToNodeIds().entrySet()) {
+		for (Entry<List<String>, List<Integer>> daemonsToNodeIds : config.getDaemonsToNodeIds().entrySet()) {
 			
 			// Create instanceType -> List[nodeIds]
 			HashMap<String, ArrayList<Integer>> instanceTypeToNodeIdsToStart = new HashMap<String, ArrayList<Integer>>();
@@ -214,56 +373,40 @@ public class Deploy {
 			
 			// Iterate all different types of instanceTypes for the nodes to start
 			for (String instanceType : instanceTypeToNodeIdsToStart.keySet()) {
+				ListenableFuture<HashMap<Integer, NodeMetadata>> launch = launcher.launch(new LaunchNodeTask(
+						compute, 
+						config,
+						instanceType, 
+						clustername, 
+						instanceTypeToNodeIdsToStart.get(instanceType), 
+						daemonsToNodeIds.getKey()));
 				
-				// If any of the daemons are ZK, launch one node at a time and write zkid
-				if (daemonsToNodeIds.getKey().contains("ZK")) {
-					
-					// Loop each nodeid to start
-					for (int nodeIdToStartWithZK : instanceTypeToNodeIdsToStart.get(instanceType)) {
-						log.info("Starting 1 instance of type " + instanceType + " with daemons " + daemonsToNodeIds.getKey().toString());
-						workerThreads.add(new LaunchNodeThread(
-								compute,
-								config,
-								instanceType, 
-								clustername, 
-								new ArrayList<Integer>(Arrays.asList(nodeIdToStartWithZK)),
-								daemonsToNodeIds.getKey(), config.getNodeIdToZkId().get(nodeIdToStartWithZK)));
-					}
-					
-				} else {
-					log.info("Starting " + instanceTypeToNodeIdsToStart.get(instanceType).size() + " instance(s) of type " + instanceType + " with daemons " + daemonsToNodeIds.getKey().toString());
-					workerThreads.add(new LaunchNodeThread(
-							compute, 
-							config,
-							instanceType, 
-							clustername, 
-							instanceTypeToNodeIdsToStart.get(instanceType), 
-							daemonsToNodeIds.getKey(), null));	
+				// Start installing, as soon as nodes are running
+				if (rootInstallCommands != null) {
+					installing.add(Futures.transform(launch, new Function<HashMap<Integer, NodeMetadata>, HashMap<Integer, ListenableFuture<Void>>>() {
+						@Override
+						public HashMap<Integer, ListenableFuture<Void>> apply(HashMap<Integer, NodeMetadata> nodes) {
+							HashMap<Integer, ListenableFuture<Void>> ret = new HashMap<Integer, ListenableFuture<Void>>();
+							for (Entry<Integer, NodeMetadata> e : nodes.entrySet())
+								ret.put(e.getKey(), pipeline.stage("Setup", e.getValue(), rootInstallCommands, true, ImmutableList.<ListenableFuture<Void>>of()));
+							return ret;
+						}
+					}));
 				}
 			}
 		}
 		
 		// Wait until nodes have started
-		boolean allOK = false;
-		while (!allOK) {
-			allOK = true;
-			for (LaunchNodeThread l : workerThreads) {
-				if (l.getNewNodes() == null)
-					allOK = false;
-			}
-			
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {}
-		}
-		
-		// Collect information about started nodes
-		HashMap<Integer, NodeMetadata> ret = new HashMap<Integer, NodeMetadata>();
-		for (LaunchNodeThread l : workerThreads) {
-			int i = 0;
-			for (NodeMetadata n : l.getNewNodes())
-				ret.put(l.getNodeIds().get(i++), n);
+		try {
+			HashMap<Integer, NodeMetadata> nodes = launcher.awaitAll();
+			for (HashMap<Integer, ListenableFuture<Void>> i : Futures.allAsList(installing).get())
+				installed.putAll(i);
+			return nodes;
+		} catch (ExecutionException ex) {
+			log.error("Problem starting instance(s), instances already started have been terminated", ex.getCause());
+		} catch (InterruptedException ex) {
+			log.error("Interrupted while starting instance(s)", ex);
 		}
-		return ret;
+		return null;
 	}
 }
@@ -1,31 +1,214 @@
 package dk.kaspergsm.stormdeploy.commands;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.jclouds.compute.ComputeService;
 import org.jclouds.compute.domain.NodeMetadata;
-import org.jclouds.compute.domain.NodeMetadata.Status;
+import org.jclouds.ec2.EC2Api;
+import org.jclouds.ec2.domain.KeyPair;
+import org.jclouds.ec2.domain.SecurityGroup;
+import org.jclouds.ec2.domain.Volume;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import dk.kaspergsm.stormdeploy.ClusterState;
+import dk.kaspergsm.stormdeploy.Tools;
 
+/**
+ * Tears down a cluster. Instances are terminated in one batch, then attached EBS volumes,
+ * security groups and keypairs created for the cluster are deleted concurrently.
+ *
+ * @author Kasper Grud Skat Madsen
+ */
 public class Kill {
 	private static Logger log = LoggerFactory.getLogger(Kill.class);
+	private static final int MAX_CONCURRENT_DELETES = 10;
+	private static final int MAX_DELETE_ATTEMPTS = 10;
+	private static final long DELETE_RETRY_INTERVAL_MS = 3000;
 
-	@SuppressWarnings("unchecked")
 	public static void kill(String clustername, ComputeService computeService) {
-		
-		int nodesToKill = 0;
-		for (NodeMetadata n : (Set<NodeMetadata>) computeService.listNodes()) {
-			if (n.getStatus() != Status.TERMINATED &&
-					n.getGroup() != null &&
-					n.getGroup().toLowerCase().equals(clustername.toLowerCase()) &&
-					n.getUserMetadata().containsKey("daemons")) {
-
-				// Destroy now
-				computeService.destroyNode(n.getId());
-				nodesToKill++;
+
+		/**
+		 * Find instances, and the volumes attached to them, before terminating
+		 * 	volumes are only associated with their instance while attached
+		 */
+		final Set<String> nodeIds = new HashSet<String>();
+		HashMap<String, Set<String>> instancesByRegion = new HashMap<String, Set<String>>();
+		for (NodeMetadata n : Tools.getClusterNodes(clustername, computeService)) {
+			nodeIds.add(n.getId());
+			String region = n.getLocation().getParent().getId();
+			if (!instancesByRegion.containsKey(region))
+				instancesByRegion.put(region, new HashSet<String>());
+			instancesByRegion.get(region).add(n.getProviderId());
+		}
+		if (nodeIds.isEmpty()) {
+			log.info("No running instances found for cluster " + clustername);
+			ClusterState.delete(clustername);
+			return;
+		}
+
+		EC2Api ec2Api = getEC2Api(computeService);
+		HashMap<String, Set<Volume>> volumesByRegion = new HashMap<String, Set<Volume>>();
+		int numVolumes = 0;
+		if (ec2Api != null) {
+			for (Entry<String, Set<String>> e : instancesByRegion.entrySet()) {
+				volumesByRegion.put(e.getKey(), ec2Api.getElasticBlockStoreApi().get().describeVolumesInRegionWithFilter(e.getKey(),
+						ImmutableMultimap.<String, String>builder()
+							.putAll("attachment.instance-id", e.getValue())
+							.put("attachment.delete-on-termination", "false")
+							.build()));
+				numVolumes += volumesByRegion.get(e.getKey()).size();
+			}
+		}
+
+
+		/**
+		 * Terminate all instances in one call, jclouds waits for them concurrently
+		 */
+		log.info("Terminating " + nodeIds.size() + " instance(s)");
+		long start = System.currentTimeMillis();
+		Set<? extends NodeMetadata> destroyed = computeService.destroyNodesMatching(new Predicate<NodeMetadata>() {
+			@Override
+			public boolean apply(NodeMetadata input) {
+				return nodeIds.contains(input.getId());
+			}
+		});
+		log.info("Terminated " + destroyed.size() + " of " + nodeIds.size() + " instance(s) in " + (System.currentTimeMillis() - start) / 1000 + "s");
+		ClusterState.delete(clustername);
+
+		if (ec2Api == null) {
+			log.info("Summary: instances " + destroyed.size() + "/" + nodeIds.size());
+			return;
+		}
+
+
+		/**
+		 * Delete volumes, security groups and keypairs concurrently
+		 */
+		ListeningExecutorService executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(
+				MAX_CONCURRENT_DELETES,
+				new ThreadFactoryBuilder().setNameFormat("kill-%d").setDaemon(true).build()));
+		try {
+			List<ListenableFuture<Boolean>> volumeDeletes = new ArrayList<ListenableFuture<Boolean>>();
+			AtomicInteger deletedVolumes = new AtomicInteger();
+			for (Entry<String, Set<Volume>> e : volumesByRegion.entrySet()) {
+				for (Volume v : e.getValue())
+					volumeDeletes.add(executor.submit(deleteVolume(ec2Api, e.getKey(), v, deletedVolumes, numVolumes)));
+			}
+
+			List<ListenableFuture<Boolean>> groupDeletes = new ArrayList<ListenableFuture<Boolean>>();
+			List<ListenableFuture<Boolean>> keyPairDeletes = new ArrayList<ListenableFuture<Boolean>>();
+			String prefix = "jclouds#" + clustername.toLowerCase();
+			for (String region : instancesByRegion.keySet()) {
+				for (SecurityGroup g : ec2Api.getSecurityGroupApi().get().describeSecurityGroupsInRegionWithFilter(region, ImmutableMultimap.of("group-name", prefix)))
+					groupDeletes.add(executor.submit(deleteSecurityGroup(ec2Api, region, g.getName())));
+				for (KeyPair k : ec2Api.getKeyPairApi().get().describeKeyPairsInRegionWithFilter(region, ImmutableMultimap.of("key-name", prefix, "key-name", prefix + "#*")))
+					keyPairDeletes.add(executor.submit(deleteKeyPair(ec2Api, region, k.getKeyName())));
+			}
+
+			log.info("Summary: instances " + destroyed.size() + "/" + nodeIds.size()
+					+ ", volumes " + countDeleted(volumeDeletes) + "/" + volumeDeletes.size()
+					+ ", security groups " + countDeleted(groupDeletes) + "/" + groupDeletes.size()
+					+ ", keypairs " + countDeleted(keyPairDeletes) + "/" + keyPairDeletes.size());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Returns EC2Api, or null if provider is not EC2 based
+	 */
+	private static EC2Api getEC2Api(ComputeService computeService) {
+		try {
+			return computeService.getContext().unwrapApi(EC2Api.class);
+		} catch (IllegalArgumentException ex) {
+			log.info("Provider is not EC2 based, only instances are terminated");
+			return null;
+		}
+	}
+
+	/**
+	 * Volumes take a while to detach after termination, so deletion is retried
+	 */
+	private static Callable<Boolean> deleteVolume(final EC2Api ec2Api, final String region, final Volume v, final AtomicInteger deleted, final int total) {
+		return new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				for (int attempt = 1; ; attempt++) {
+					try {
+						ec2Api.getElasticBlockStoreApi().get().deleteVolumeInRegion(region, v.getId());
+						log.info("Deleted volume " + v.getId() + " (" + deleted.incrementAndGet() + "/" + total + ")");
+						return true;
+					} catch (RuntimeException ex) {
+						if (attempt >= MAX_DELETE_ATTEMPTS) {
+							log.error("Could not delete volume " + v.getId(), ex);
+							return false;
+						}
+						Thread.sleep(DELETE_RETRY_INTERVAL_MS);
+					}
+				}
+			}
+		};
+	}
+
+	private static Callable<Boolean> deleteSecurityGroup(final EC2Api ec2Api, final String region, final String name) {
+		return new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				try {
+					ec2Api.getSecurityGroupApi().get().deleteSecurityGroupInRegion(region, name);
+					log.info("Deleted security group " + name);
+					return true;
+				} catch (RuntimeException ex) {
+					log.error("Could not delete security group " + name, ex);
+					return false;
+				}
+			}
+		};
+	}
+
+	private static Callable<Boolean> deleteKeyPair(final EC2Api ec2Api, final String region, final String name) {
+		return new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				try {
+					ec2Api.getKeyPairApi().get().deleteKeyPairInRegion(region, name);
+					log.info("Deleted keypair " + name);
+					return true;
+				} catch (RuntimeException ex) {
+					log.error("Could not delete keypair " + name, ex);
+					return false;
+				}
+			}
+		};
+	}
+
+	private static int countDeleted(List<ListenableFuture<Boolean>> deletes) {
+		int count = 0;
+		try {
+			for (Boolean deleted : Futures.successfulAsList(deletes).get()) {
+				if (deleted != null && deleted)
+					count++;
 			}
+		} catch (InterruptedException ex) {
+			log.error("Interrupted while deleting resources", ex);
+		} catch (ExecutionException ex) {
+			log.error("Problem deleting resources", ex);
 		}
-		
-		log.info("Terminated " + nodesToKill + " nodes");
+		return count;
 	}
 }
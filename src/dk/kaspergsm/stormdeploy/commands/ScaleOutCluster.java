@@ -1,112 +1,172 @@
 package dk.kaspergsm.stormdeploy.commands;
 
-import static org.jclouds.scriptbuilder.domain.Statements.exec;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeoutException;
 
 import org.jclouds.compute.ComputeServiceContext;
-import org.jclouds.compute.RunNodesException;
-import org.jclouds.compute.RunScriptOnNodesException;
+import org.jclouds.compute.domain.Hardware;
 import org.jclouds.compute.domain.NodeMetadata;
-import org.jclouds.compute.domain.NodeMetadata.Status;
-import org.jclouds.compute.domain.TemplateBuilder;
-import org.jclouds.compute.options.RunScriptOptions;
-import org.jclouds.compute.options.TemplateOptions;
 import org.jclouds.scriptbuilder.domain.Statement;
-import org.jclouds.scriptbuilder.domain.StatementList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import dk.kaspergsm.stormdeploy.ConfigurationPipeline;
+import dk.kaspergsm.stormdeploy.LaunchNodeTask;
 import dk.kaspergsm.stormdeploy.Tools;
+import dk.kaspergsm.stormdeploy.artifacts.Artifact;
+import dk.kaspergsm.stormdeploy.artifacts.ArtifactCache;
+import dk.kaspergsm.stormdeploy.artifacts.ArtifactMirror;
+import dk.kaspergsm.stormdeploy.artifacts.HttpArtifactMirror;
+import dk.kaspergsm.stormdeploy.artifacts.NodeArtifactMirror;
 import dk.kaspergsm.stormdeploy.configurations.NodeConfiguration;
+import dk.kaspergsm.stormdeploy.configurations.Scheduler;
+import dk.kaspergsm.stormdeploy.configurations.StormDeployAlternative;
+import dk.kaspergsm.stormdeploy.configurations.StormTuning;
 import dk.kaspergsm.stormdeploy.userprovided.Configuration;
 import dk.kaspergsm.stormdeploy.userprovided.Credential;
 
 public class ScaleOutCluster {
 	private static Logger log = LoggerFactory.getLogger(ScaleOutCluster.class);
+	private static final int MAX_SETUP_ATTEMPTS = 2;
 	
 	/**
 	 * Assumes we are currently attached to the cluster to extend
 	 */
-	@SuppressWarnings("unchecked")
 	public static void AddWorkers(int numInstances, String clustername, String instanceType, Configuration config, Credential credentials, ComputeServiceContext computeContext) {	
 		
+		/**
+		 * Nodes execute supervision and monitoring from a copy of this jar
+		 */
+		try {
+			StormDeployAlternative.getLocalJar();
+		} catch (IllegalStateException ex) {
+			log.error(ex.getMessage());
+			return;
+		}
+		
+		
 		/**
 		 * Parse current running nodes for cluster
 		 */
 		ArrayList<NodeMetadata> existingZookeeper = new ArrayList<NodeMetadata>();
 		ArrayList<NodeMetadata> existingWorkers = new ArrayList<NodeMetadata>();
 		ArrayList<NodeMetadata> existingDRPC = new ArrayList<NodeMetadata>();
+		ArrayList<NodeMetadata> existingPacemaker = new ArrayList<NodeMetadata>();
 		NodeMetadata nimbus = null, ui = null;
 		String image = null, region = null;
-		for (NodeMetadata n : (Set<NodeMetadata>) computeContext.getComputeService().listNodes()) {			
-			if (n.getStatus() != Status.TERMINATED &&
-					n.getGroup() != null &&
-					n.getGroup().toLowerCase().equals(clustername.toLowerCase()) &&
-					n.getUserMetadata().containsKey("daemons")) {
-				String daemons = n.getUserMetadata().get("daemons").replace("[", "").replace("]", "");
-				
-				for (String daemon : daemons.split(",")) {
-					if (daemon.trim().toLowerCase().equals("master"))
-						nimbus = n;
-					if (daemon.trim().toLowerCase().equals("ui"))
-						ui = n;
-					if (daemon.trim().toLowerCase().equals("worker"))
-						existingWorkers.add(n);
-					if (daemon.trim().toLowerCase().equals("zk"))
-						existingZookeeper.add(n);
-					if (daemon.trim().toLowerCase().equals("drpc"))
-						existingDRPC.add(n);
-				}
-				
-				if (image == null)
-					image = n.getImageId();
-				if (region == null)
-					region = n.getLocation().getParent().getId();
+		for (NodeMetadata n : Tools.getClusterNodes(clustername, computeContext.getComputeService())) {
+			String daemons = n.getUserMetadata().get("daemons").replace("[", "").replace("]", "");
+			
+			for (String daemon : daemons.split(",")) {
+				if (daemon.trim().toLowerCase().equals("master"))
+					nimbus = n;
+				if (daemon.trim().toLowerCase().equals("ui"))
+					ui = n;
+				if (daemon.trim().toLowerCase().equals("worker"))
+					existingWorkers.add(n);
+				if (daemon.trim().toLowerCase().equals("zk"))
+					existingZookeeper.add(n);
+				if (daemon.trim().toLowerCase().equals("drpc"))
+					existingDRPC.add(n);
+				if (daemon.trim().toLowerCase().equals("pacemaker"))
+					existingPacemaker.add(n);
 			}
+			
+			if (image == null)
+				image = n.getImageId();
+			if (region == null)
+				region = n.getLocation().getParent().getId();
 		}
 		
 		
 		/**
-		 * Start new workernodes
+		 * Start new workernodes, from the image of the cluster
+		 * 	instances failing to start are replaced, and all are terminated if the launch fails
 		 */
-		Set<NodeMetadata> newWorkerNodes = startWorkerNodesNow(
-				clustername, 
-				NodeConfiguration.getRootCommands(
-						clustername,
-						credentials, 
-						config, 
-						getInstancesPrivateIp(existingZookeeper), 
-						getInstancesPrivateIp(existingDRPC), 
-						nimbus.getPrivateAddresses().iterator().next(), 
-						ui.getPrivateAddresses().iterator().next()), 
-					instanceType, 
-					numInstances, 
-					image, 
-					region, 
-					computeContext,
-					config);		
-
-		for (NodeMetadata nm: newWorkerNodes) {
-			computeContext.getComputeService().runScriptOnNode(nm.getId(), new StatementList(NodeConfiguration.getCommands(
-					clustername,
-					credentials,
-					config,
-					getInstancesPrivateIp(existingZookeeper), 
-					getInstancesPrivateIp(existingDRPC), 
-					nimbus.getPrivateAddresses().iterator().next(), 
-					ui.getPrivateAddresses().iterator().next())),				
-					new RunScriptOptions()
-					.nameTask("Setup-User")
-				 	.overrideLoginCredentials(Tools.getPrivateKeyCredentials(config))
-				 	.wrapInInitScript(true)
-				 	.overrideLoginUser(config.getImageUsername())
-				 	.blockOnComplete(true)
-				 	.runAsRoot(false));
+		Set<NodeMetadata> newWorkerNodes = null;
+		try {
+			List<Integer> nodeIds = new ArrayList<Integer>();
+			for (int i = 0; i < numInstances; i++)
+				nodeIds.add(i);
+			log.info("Starting " + numInstances + " instance(s) of type " + instanceType);
+			newWorkerNodes = new HashSet<NodeMetadata>(new LaunchNodeTask(computeContext.getComputeService(), config, instanceType, clustername, nodeIds, Arrays.asList("WORKER")).fromImage(image, region).call().values());
+		} catch (Exception ex) {
+			log.error("Error when starting instance(s)", ex);
+			System.exit(1);
+		}
+		
+		
+		/**
+		 * Configure and start new workernodes concurrently
+		 * 	nodes failing setup are retried, and terminated if they keep failing
+		 * 	cached artifacts are downloaded from the mirror seeded during deploy, unless a mirror is configured
+		 */
+		List<Statement> rootCommands = NodeConfiguration.getRootCommands(
+				clustername,
+				credentials, 
+				config, 
+				getInstancesPrivateIp(existingZookeeper), 
+				getInstancesPrivateIp(existingDRPC), 
+				nimbus.getPrivateAddresses().iterator().next(), 
+				ui.getPrivateAddresses().iterator().next());
+		ArtifactMirror mirror = null;
+		List<Artifact> artifacts = ArtifactCache.getArtifacts(config);
+		if (artifacts.size() > 0)
+			mirror = (config.getArtifactMirror() != null) ? new HttpArtifactMirror(config.getArtifactMirror(), artifacts) : new NodeArtifactMirror(nimbus, artifacts);
+		List<Statement> userCommands = NodeConfiguration.getCommands(
+				clustername,
+				credentials,
+				config,
+				getInstancesPrivateIp(existingZookeeper), 
+				getInstancesPrivateIp(existingDRPC), 
+				getInstancesPrivateIp(existingPacemaker), 
+				nimbus.getPrivateAddresses().iterator().next(), 
+				ui.getPrivateAddresses().iterator().next(),
+				mirror);
+		Hardware hardware = Tools.getHardwareProfiles(computeContext.getComputeService()).get(instanceType);
+		userCommands.addAll(StormTuning.configure(
+				config,
+				"new instance(s) (" + instanceType + ")",
+				hardware,
+				Arrays.asList("WORKER"),
+				new HashMap<String, Integer>()));
+		
+		// scheduler names continue after existing workers (the MASTER is named spout)
+		int nodeCount = 0;
+		for (NodeMetadata n : existingWorkers) {
+			if (!n.getUserMetadata().get("daemons").contains("MASTER"))
+				nodeCount++;
+		}
+		HashMap<NodeMetadata, List<Statement>> nodeCommands = new HashMap<NodeMetadata, List<Statement>>();
+		for (NodeMetadata n : newWorkerNodes) {
+			List<Statement> commands = new ArrayList<Statement>(userCommands);
+			commands.addAll(Scheduler.configure("node" + nodeCount++, instanceType, hardware, Arrays.asList("WORKER"), new HashMap<String, Integer>(), n, config));
+			nodeCommands.put(n, commands);
+		}
+		Set<NodeMetadata> failedNodes = new HashSet<NodeMetadata>(newWorkerNodes);
+		for (int attempt = 1; attempt <= MAX_SETUP_ATTEMPTS && !failedNodes.isEmpty(); attempt++) {
+			if (attempt > 1)
+				log.warn("Retrying setup of " + failedNodes.size() + " instance(s)");
+			failedNodes = configureWorkersNow(failedNodes, rootCommands, nodeCommands, computeContext, config);
 		}
+		for (NodeMetadata n : failedNodes) {
+			log.error("Terminating instance " + n.getId() + ", setup failed " + MAX_SETUP_ATTEMPTS + " times");
+			computeContext.getComputeService().destroyNode(n.getId());
+			newWorkerNodes.remove(n);
+		}
+		log.info("Configured " + newWorkerNodes.size() + " of " + (newWorkerNodes.size() + failedNodes.size()) + " new instance(s)");
 		
+
 		/**
 		 * Update attachment
 		 */
@@ -124,7 +184,54 @@ public class ScaleOutCluster {
 		/**
 		 * Close application now
 		 */
-		System.exit(0);
+		System.exit(failedNodes.isEmpty() ? 0 : 1);
+	}
+	
+	/**
+	 * Configure nodes, at most max-concurrent-scripts at the same time. Returns set of nodes failing setup
+	 */
+	private static Set<NodeMetadata> configureWorkersNow(Set<NodeMetadata> nodes, List<Statement> rootCommands, Map<NodeMetadata, List<Statement>> nodeCommands, final ComputeServiceContext computeContext, final Configuration config) {
+		ConfigurationPipeline pipeline = new ConfigurationPipeline(computeContext.getComputeService(), config, config.getMaxConcurrentScripts());
+		HashMap<NodeMetadata, ListenableFuture<Void>> started = new HashMap<NodeMetadata, ListenableFuture<Void>>();
+		for (final NodeMetadata n : nodes) {
+			ListenableFuture<Void> root = pipeline.stage("Setup", n, rootCommands, true, ImmutableList.<ListenableFuture<Void>>of());
+			ListenableFuture<Void> uploaded = pipeline.task("Upload-SDA", n, new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					StormDeployAlternative.uploadJar(n, computeContext.getComputeService(), config);
+					return null;
+				}
+			}, ImmutableList.<ListenableFuture<Void>>of());
+			ListenableFuture<Void> user = pipeline.stage("User-Setup", n, nodeCommands.get(n), false, ImmutableList.of(root, uploaded));
+			started.put(n, pipeline.stage("Start-Daemons", n, NodeConfiguration.startDaemons(config), false, ImmutableList.of(user)));
+		}
+		
+		try {
+			pipeline.awaitAll();
+		} catch (InterruptedException ex) {
+			log.error("Problem configuring instance(s)", ex);
+		} catch (ExecutionException ex) {
+			// failures have been reported per node
+		}
+		pipeline.logStageTimings();
+		
+		Set<NodeMetadata> failed = new HashSet<NodeMetadata>();
+		for (Entry<NodeMetadata, ListenableFuture<Void>> e : started.entrySet()) {
+			if (!e.getValue().isDone() || isFailed(e.getValue()))
+				failed.add(e.getKey());
+		}
+		return failed;
+	}
+	
+	private static boolean isFailed(ListenableFuture<Void> stage) {
+		try {
+			stage.get();
+			return false;
+		} catch (ExecutionException ex) {
+			return true;
+		} catch (InterruptedException ex) {
+			return true;
+		}
 	}
 	
 	private static List<String> getInstancesPrivateIp(ArrayList<NodeMetadata> nodes) {
@@ -133,38 +240,4 @@ public class ScaleOutCluster {
 			newNodes.add(n.getPrivateAddresses().iterator().next());
 		return newNodes;
 	}
-	
-	@SuppressWarnings("unchecked")
-	private static Set<NodeMetadata> startWorkerNodesNow(String clustername, List<Statement> commands, String instanceType, int numInstances, String image, String region, ComputeServiceContext computeContext, Configuration config) {
-		try {
-			
-			// Create initScript
-			ArrayList<Statement> initScript = new ArrayList<Statement>();
-			initScript.add(exec("echo WORKER > /home/"+config.getImageUsername()+"/daemons"));
-			initScript.add(exec("echo \"" + instanceType.toString() + "\" > /home/"+config.getImageUsername()+".instance-type"));
-			initScript.addAll(commands);
-			
-			log.info("Starting " + numInstances + " instance(s) of type " + instanceType);
-			TemplateBuilder templateBuilder = computeContext.getComputeService().templateBuilder()
-					.hardwareId(instanceType)
-					.imageId(image)
-					.locationId(region)
-					.options(new TemplateOptions()
-						.nameTask("Setup")	
-						.blockOnComplete(true)
-						.wrapInInitScript(true)
-						.inboundPorts(22, 6627, 8080) // 22 = SSH, 6627 = Thrift, 8080 = UI
-						.overrideLoginUser(config.getImageUsername())
-						.userMetadata("daemons", "[WORKER]")
-						.runScript(new StatementList(initScript))
-						.overrideLoginCredentials(Tools.getPrivateKeyCredentials(config))
-						.authorizePublicKey(Tools.getPublicKey(config)));
-			return (Set<NodeMetadata>) computeContext.getComputeService().createNodesInGroup(clustername, numInstances, templateBuilder.build());
-		} catch (IllegalArgumentException ex) {
-			log.error("Error when starting instance(s)", ex);
-		} catch (RunNodesException ex) {
-			log.error("Error when starting instance(s)", ex);
-		}
-		return null;
-	}
 }
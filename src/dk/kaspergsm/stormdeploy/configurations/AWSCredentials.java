@@ -6,6 +6,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 
 import org.jclouds.scriptbuilder.domain.Statement;
+import dk.kaspergsm.stormdeploy.Tools;
 
 public class AWSCredentials {
 
@@ -14,21 +15,17 @@ public class AWSCredentials {
 		ArrayList<Statement> st = new ArrayList<Statement>();
 		
 		// Add AWS credentials to env so AWS API can create credentials.
-		st.add(exec("echo \"export AWS_ACCESS_KEY_ID=" + key + "\" >> ~/.bashrc"));
-		st.add(exec("echo \"export AWS_SECRET_ACCESS_KEY=" + secret + "\" >> ~/.bashrc"));
-		st.add(exec("echo \"export AWS_DEFAULT_REGION=" + region + "\" >> ~/.bashrc"));
+		st.add(Tools.appendLine("export AWS_ACCESS_KEY_ID=" + key + "", "~/.bashrc"));
+		st.add(Tools.appendLine("export AWS_SECRET_ACCESS_KEY=" + secret + "", "~/.bashrc"));
+		st.add(Tools.appendLine("export AWS_DEFAULT_REGION=" + region + "", "~/.bashrc"));
 
 		// Read changes into current environment
 		st.add(exec("source ~/.bashrc"));
 		
 		// ok, the above doesn't work when using storm.  Probably because storm doesn't get the env??
 		// let's try creating a file too and see if that works.
-		st.add(exec("cd ~"));
-		st.add(exec("mkdir ~/.aws"));
-		st.add(exec("touch ~/.aws/credentials"));
-		st.add(exec("echo \"[default]\" >> ~/.aws/credentials"));
-		st.add(exec("echo \"aws_access_key_id=" + key + "\" >> ~/.aws/credentials"));
-		st.add(exec("echo \"aws_secret_access_key=" + secret + "\" >> ~/.aws/credentials"));
+		st.add(exec("mkdir -p ~/.aws"));
+		st.addAll(Tools.writeFile("[default]\naws_access_key_id=" + key + "\naws_secret_access_key=" + secret + "\n", "~/.aws/credentials"));
 
 		return st;
 	}
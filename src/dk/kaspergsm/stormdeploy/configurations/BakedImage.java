@@ -0,0 +1,65 @@
+package dk.kaspergsm.stormdeploy.configurations;
+
+import static org.jclouds.scriptbuilder.domain.Statements.exec;
+import java.util.ArrayList;
+import java.util.List;
+import org.jclouds.scriptbuilder.domain.OsFamily;
+import org.jclouds.scriptbuilder.domain.Statement;
+
+/**
+ * Contains all methods to skip install steps, already covered by the image.
+ * 	Each completed step leaves a marker in /var/lib/sda/baked. Images created by the bake command
+ * 	carry these markers, so nodes launched from them skip the steps automatically.
+ * 
+ * @author Kasper Grud Skat Madsen
+ */
+public class BakedImage {
+	public static final String MARKER_DIR = "/var/lib/sda/baked";
+	
+	/**
+	 * Create marker directory (writable by all users). Must be executed as root, before any step
+	 */
+	public static List<Statement> init() {
+		ArrayList<Statement> st = new ArrayList<Statement>();
+		st.add(exec("mkdir -p " + MARKER_DIR));
+		st.add(exec("chmod 1777 " + MARKER_DIR));
+		return st;
+	}
+	
+	/**
+	 * Returns commands, guarded so they are only executed if step is not already baked into the image.
+	 * 	Commands run as one block, stopping at the first failing command. Step is only marked as baked if the block succeeds,
+	 * 	otherwise the script exits with the status of the block
+	 */
+	public static List<Statement> unlessBaked(String step, List<Statement> commands) {
+		StringBuilder block = new StringBuilder();
+		for (Statement s : commands)
+			block.append(s.render(OsFamily.UNIX));
+		
+		// Subshell must not be part of a && or || list, as set -e is ignored there
+		String marker = MARKER_DIR + "/" + step;
+		ArrayList<Statement> st = new ArrayList<Statement>();
+		st.add(exec("if [ ! -e " + marker + " ]; then\n" +
+				"( set -e\n" + block + ")\n" +
+				"STEP_STATUS=$?; [ $STEP_STATUS -eq 0 ] || exit $STEP_STATUS\n" +
+				"touch " + marker + "\n" +
+				"fi"));
+		return st;
+	}
+	
+	/**
+	 * List steps baked into the image
+	 */
+	public static List<Statement> listBaked() {
+		ArrayList<Statement> st = new ArrayList<Statement>();
+		st.add(exec("ls " + MARKER_DIR));
+		return st;
+	}
+	
+	/**
+	 * Name of step downloading remoteLocation. Contains the filename, so a new version is not considered baked
+	 */
+	public static String downloadStep(String remoteLocation) {
+		return "download-" + remoteLocation.substring(remoteLocation.lastIndexOf("/") + 1);
+	}
+}
@@ -0,0 +1,32 @@
+package dk.kaspergsm.stormdeploy.configurations;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.jclouds.compute.domain.Hardware;
+import org.jclouds.compute.domain.NodeMetadata;
+import dk.kaspergsm.stormdeploy.userprovided.Configuration;
+
+/**
+ * Describes the name, instance type, cores, memory and placement of a node
+ *
+ * @author Kasper Grud Skat Madsen
+ */
+public class DefaultSchedulerMetaGenerator implements SchedulerMetaGenerator {
+
+	@Override
+	public Map<String, String> generate(String nodeName, String instanceType, Hardware hardware, NodeMetadata node, Configuration config) {
+		LinkedHashMap<String, String> meta = new LinkedHashMap<String, String>();
+		meta.put("name", nodeName);
+		meta.put("instance-type", instanceType);
+		if (hardware != null) {
+			meta.put("vcpu", String.valueOf(StormTuning.getCores(hardware)));
+			meta.put("memory-mb", String.valueOf(hardware.getRam()));
+		}
+		if (node.getLocation() != null)
+			meta.put("availability-zone", node.getLocation().getId());
+		if (config.getPlacementGroup() != null)
+			meta.put("placement-group", config.getPlacementGroup());
+		meta.put("local-disk", config.isMountLocalStorage() ? "instance-store" : (config.getEBSStorageSize() > 0 ? "ebs" : "none"));
+		return meta;
+	}
+}
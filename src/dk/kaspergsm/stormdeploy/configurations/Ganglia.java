@@ -32,8 +32,8 @@ public class Ganglia {
 			st.add(Tools.execOnUI("apt-get install -q -y ganglia-webfrontend",username));
 
 			// Ensure daemons have not been started
-			st.add(exec("/etc/init.d/ganglia-monitor stop"));
-			st.add(exec("/etc/init.d/gmetad stop"));
+			st.add(exec("/etc/init.d/ganglia-monitor stop || true"));
+			st.add(exec("/etc/init.d/gmetad stop || true"));
 		} else if (pm == PACKAGE_MANAGER.YUM) {
 			// Install monitoring base
 			st.add(exec("yum -y install ganglia ganglia-gmond ganglia-gmetad "));
@@ -42,8 +42,8 @@ public class Ganglia {
 			st.add(Tools.execOnUI("yum -y install ganglia-web", username));
 
 			// Ensure daemons have not been started
-			st.add(exec("/etc/init.d/gmond stop"));
-			st.add(exec("/etc/init.d/gmetad stop"));
+			st.add(exec("/etc/init.d/gmond stop || true"));
+			st.add(exec("/etc/init.d/gmetad stop || true"));
 			
 		}	else {
 				log.error("PACKAGE MANAGER not supported: " + pm.toString());
@@ -57,8 +57,8 @@ public class Ganglia {
 	public static List<Statement> configure(String clustername, String uiHostname, PACKAGE_MANAGER pm, String username) {
 		ArrayList<Statement> st = new ArrayList<Statement>();
 		
-		// Strip top of configurationfile
-		st.add(exec("sed \'1,/Each metrics module that is referenced/d\' /etc/ganglia/gmond.conf > /etc/ganglia/stripped_gmond.conf"));
+		// Strip top of configurationfile (only the original, so configuring again does not strip the written configuration)
+		st.add(exec("[ -e /etc/ganglia/stripped_gmond.conf ] || sed \'1,/Each metrics module that is referenced/d\' /etc/ganglia/gmond.conf > /etc/ganglia/stripped_gmond.conf"));
 		
 		// Write configuration
 		st.add(exec("echo \"" + getConfiguration(clustername, uiHostname) + "\" > /etc/ganglia/gmond.conf"));
@@ -0,0 +1,149 @@
+package dk.kaspergsm.stormdeploy.configurations;
+
+import static org.jclouds.scriptbuilder.domain.Statements.exec;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import org.jclouds.scriptbuilder.domain.Statement;
+import com.google.common.base.Joiner;
+import dk.kaspergsm.stormdeploy.Tools;
+import dk.kaspergsm.stormdeploy.userprovided.Configuration;
+
+/**
+ * Contains all methods to tune the kernel and network of nodes.
+ * 	low-latency keeps buffers moderate and disables transparent hugepages, throughput uses large socket buffers and backlogs.
+ * 	Settings are applied by a script, which runs again at every boot and logs whether they are in effect.
+ *
+ * @author Kasper Grud Skat Madsen
+ */
+public class KernelTuning {
+	public static final String LOW_LATENCY = "low-latency";
+	public static final String THROUGHPUT = "throughput";
+	private static final String SYSCTL_FILE = "/etc/sysctl.d/99-sda-tuning.conf";
+	private static final String LIMITS_FILE = "/etc/security/limits.d/99-sda-tuning.conf";
+	private static final String SCRIPT = "/usr/local/sbin/sda-kernel-tuning";
+	private static final String LOG = "/var/log/sda-kernel-tuning.log";
+	private static final int PLACEMENT_GROUP_MTU = 9001;
+
+	/**
+	 * Root commands applying the kernel profile of configuration. Returns no commands if no profile is set
+	 */
+	public static List<Statement> configure(Configuration config) {
+		ArrayList<Statement> st = new ArrayList<Statement>();
+		String profile = config.getKernelProfile();
+		if (profile == null)
+			return st;
+
+		// Jumbo frames only pay off when all traffic stays inside the placement group
+		int mtu = (config.getPlacementGroup() != null) ? PLACEMENT_GROUP_MTU : 0;
+
+		st.addAll(Tools.writeFile(getSysctlContent(profile), SYSCTL_FILE));
+		st.addAll(Tools.writeFile(getLimitsContent(config.getImageUsername()), LIMITS_FILE));
+		st.addAll(Tools.writeFile(getScriptContent(profile, mtu), SCRIPT));
+		st.add(exec("chmod 755 " + SCRIPT));
+		st.addAll(runAtBoot());
+		st.add(exec(SCRIPT));
+		return st;
+	}
+
+	private static LinkedHashMap<String, String> getSysctls(String profile) {
+		boolean throughput = profile.equals(THROUGHPUT);
+		String maxBuffer = throughput ? "67108864" : "16777216";
+		LinkedHashMap<String, String> sysctls = new LinkedHashMap<String, String>();
+		sysctls.put("net.core.rmem_max", maxBuffer);
+		sysctls.put("net.core.wmem_max", maxBuffer);
+		sysctls.put("net.core.somaxconn", "4096");
+		sysctls.put("net.core.netdev_max_backlog", throughput ? "250000" : "30000");
+		sysctls.put("net.ipv4.tcp_rmem", "4096 87380 " + maxBuffer);
+		sysctls.put("net.ipv4.tcp_wmem", "4096 65536 " + maxBuffer);
+		sysctls.put("net.ipv4.tcp_max_syn_backlog", "8192");
+		sysctls.put("net.ipv4.tcp_slow_start_after_idle", "0");
+		sysctls.put("net.ipv4.tcp_mtu_probing", "1");
+		sysctls.put("net.ipv4.ip_local_port_range", "10000 65000");
+		sysctls.put("vm.swappiness", "1");
+		sysctls.put("vm.dirty_background_ratio", throughput ? "10" : "5");
+		sysctls.put("vm.dirty_ratio", throughput ? "40" : "10");
+		sysctls.put("fs.file-max", "1048576");
+		return sysctls;
+	}
+
+	private static String getSysctlContent(String profile) {
+		StringBuilder sb = new StringBuilder("# storm-deploy-alternative kernel profile " + profile + "\n");
+		for (Entry<String, String> e : getSysctls(profile).entrySet())
+			sb.append(e.getKey()).append(" = ").append(e.getValue()).append("\n");
+		return sb.toString();
+	}
+
+	private static String getLimitsContent(String username) {
+		return Joiner.on("\n").join(
+				"# storm-deploy-alternative kernel profile",
+				"*\tsoft\tnofile\t128000",
+				"*\thard\tnofile\t128000",
+				"*\tsoft\tnproc\t65536",
+				"*\thard\tnproc\t65536",
+				username + "\tsoft\tnofile\t128000",
+				username + "\thard\tnofile\t128000",
+				username + "\tsoft\tnproc\t65536",
+				username + "\thard\tnproc\t65536",
+				"");
+	}
+
+	/**
+	 * Script applying settings, which do not survive a reboot, and verifying all settings are in effect
+	 */
+	private static String getScriptContent(String profile, int mtu) {
+		// Hugepage compaction stalls the JVM, throughput only uses hugepages where requested
+		String thp = profile.equals(THROUGHPUT) ? "madvise" : "never";
+		return Joiner.on("\n").join(
+				"#!/bin/bash",
+				"sysctl -q -p " + SYSCTL_FILE,
+				"for d in /sys/kernel/mm/transparent_hugepage /sys/kernel/mm/redhat_transparent_hugepage; do",
+				"  [ -w $d/enabled ] && echo " + thp + " > $d/enabled && echo " + thp + " > $d/defrag",
+				"done",
+				"IF=$(ip route show default | awk '{print $5; exit}')",
+				(mtu > 0) ? "[ -n \"$IF\" ] && ip link set dev $IF mtu " + mtu : "",
+				"FAILED=\"\"",
+				"while IFS== read -r key value; do",
+				"  key=$(echo $key); value=$(echo $value)",
+				"  [ -z \"$key\" ] || [ \"${key:0:1}\" = \"#\" ] && continue",
+				"  [ \"$(echo $(sysctl -n $key 2>/dev/null))\" = \"$value\" ] || FAILED=\"$FAILED $key\"",
+				"done < " + SYSCTL_FILE,
+				"for d in /sys/kernel/mm/transparent_hugepage /sys/kernel/mm/redhat_transparent_hugepage; do",
+				"  [ -r $d/enabled ] && ! grep -q '\\[" + thp + "\\]' $d/enabled && FAILED=\"$FAILED $(basename $d)\"",
+				"done",
+				(mtu > 0) ? "[ -n \"$IF\" ] && ! ip link show dev $IF | grep -q 'mtu " + mtu + " ' && FAILED=\"$FAILED mtu\"" : "",
+				"if [ -z \"$FAILED\" ]; then",
+				"  echo \"$(date) kernel profile " + profile + " in effect\" >> " + LOG,
+				"else",
+				"  echo \"$(date) kernel profile " + profile + " not in effect:$FAILED\" | tee -a " + LOG,
+				"fi",
+				"");
+	}
+
+	/**
+	 * Run SCRIPT at every boot, as systemd unit if available, otherwise from the crontab of root
+	 */
+	private static List<Statement> runAtBoot() {
+		ArrayList<Statement> st = new ArrayList<Statement>();
+		String unit = Joiner.on("\n").join(
+				"[Unit]",
+				"Description=storm-deploy-alternative kernel profile",
+				"After=network-online.target",
+				"",
+				"[Service]",
+				"Type=oneshot",
+				"ExecStart=" + SCRIPT,
+				"",
+				"[Install]",
+				"WantedBy=multi-user.target",
+				"");
+		st.add(exec("if which systemctl >/dev/null 2>&1; then"));
+		st.addAll(Tools.writeFile(unit, "/etc/systemd/system/sda-kernel-tuning.service"));
+		st.add(exec("systemctl daemon-reload; systemctl enable sda-kernel-tuning.service"));
+		st.add(exec("else"));
+		st.add(exec("(crontab -l 2>/dev/null | grep -v " + SCRIPT + "; echo \"@reboot " + SCRIPT + "\") | crontab -"));
+		st.add(exec("fi"));
+		return st;
+	}
+}
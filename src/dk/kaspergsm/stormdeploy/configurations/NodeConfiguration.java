@@ -1,12 +1,11 @@
 package dk.kaspergsm.stormdeploy.configurations;
 
-import static org.jclouds.scriptbuilder.domain.Statements.exec;
-
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import org.jclouds.scriptbuilder.domain.Statement;
 import dk.kaspergsm.stormdeploy.Tools;
+import dk.kaspergsm.stormdeploy.artifacts.ArtifactMirror;
 import dk.kaspergsm.stormdeploy.configurations.SystemTools.PACKAGE_MANAGER;
 import dk.kaspergsm.stormdeploy.userprovided.Configuration;
 import dk.kaspergsm.stormdeploy.userprovided.Credential;
@@ -16,7 +15,11 @@ import dk.kaspergsm.stormdeploy.userprovided.Credential;
  */
 public class NodeConfiguration {
 	
-	public static List<Statement> getCommands(String clustername, Credential credentials, Configuration config, List<String> zookeeperHostnames, List<String> drpcHostnames, String nimbusHostname, String uiHostname) {
+	/**
+	 * @param mirror
+	 *            Mirror to download artifacts from, or null to download from their remote locations
+	 */
+	public static List<Statement> getCommands(String clustername, Credential credentials, Configuration config, List<String> zookeeperHostnames, List<String> drpcHostnames, List<String> pacemakerHostnames, String nimbusHostname, String uiHostname, ArtifactMirror mirror) {
 		List<Statement> commands = new ArrayList<Statement>();
 				
 		// Configure IAM credentials
@@ -38,16 +41,13 @@ public class NodeConfiguration {
 		/*commands.addAll(ZeroMQ.download());
 		commands.addAll(ZeroMQ.configure());*/
 		
-		// Download and configure storm-deploy-alternative (before anything with supervision is started)
-		commands.addAll(StormDeployAlternative.download());
+		// Configure storm-deploy-alternative (before anything with supervision is started). Its jar is uploaded by StormDeployAlternative.uploadJar
 		commands.addAll(StormDeployAlternative.writeConfigurationFiles(Tools.getWorkDir() + "conf" + File.separator + "configuration.yaml", Tools.getWorkDir() + "conf" + File.separator + "credential.yaml"));
 		commands.addAll(StormDeployAlternative.writeLocalSSHKeys(config));
+		commands.addAll(StormDeployAlternative.writeSuperviseScript(config));
 		
-		// Download Storm
-		commands.addAll(Storm.download(config.getStormRemoteLocation()));
-		
-		// Download Zookeeper
-		commands.addAll(Zookeeper.download(config.getZKLocation()));
+		// Download Storm and Zookeeper (unless baked into image)
+		commands.addAll(getUserInstallCommands(config, mirror));
 		
 		
 		// Execute custom code, if user provided (pre config)
@@ -55,10 +55,10 @@ public class NodeConfiguration {
 			commands.addAll(Tools.runCustomCommands(config.getRemoteExecPreConfig()));
 		
 		// Configure Zookeeper (update configurationfiles)
-		commands.addAll(Zookeeper.configure(zookeeperHostnames));
+		commands.addAll(Zookeeper.configure(zookeeperHostnames, config));
 		
 		// Configure Storm (update configurationfiles)
-		commands.addAll(Storm.configure(nimbusHostname, zookeeperHostnames, drpcHostnames, config.getImageUsername()));
+		commands.addAll(Storm.configure(nimbusHostname, zookeeperHostnames, drpcHostnames, pacemakerHostnames, config.getImageUsername(), Storage.getDataDir(config)));
 		
 				
 		// Execute custom code, if user provided (post config)
@@ -72,14 +72,46 @@ public class NodeConfiguration {
 		return commands;
 	}
 	
-	public static List<Statement> runStorm(Configuration config) {
-		/**
-		 * Start daemons (only on correct nodes, and under supervision)
-		 */
+	/**
+	 * User commands, which do not depend on the cluster. Skipped if baked into image
+	 */
+	public static List<Statement> getUserInstallCommands(Configuration config, ArtifactMirror mirror) {
+		List<Statement> commands = new ArrayList<Statement>();
+		commands.addAll(BakedImage.unlessBaked(BakedImage.downloadStep(config.getStormRemoteLocation()), Storm.download(config.getStormRemoteLocation(), mirror)));
+		commands.addAll(BakedImage.unlessBaked(BakedImage.downloadStep(config.getZKLocation()), Zookeeper.download(config.getZKLocation(), mirror)));
+		return commands;
+	}
+	
+	/**
+	 * Start Zookeeper (only on ZK nodes, and under supervision)
+	 */
+	public static List<Statement> startZookeeper(Configuration config) {
+		return Zookeeper.startDaemonSupervision(config.getImageUsername());
+	}
+	
+	/**
+	 * Start Pacemaker and Nimbus (only on PACEMAKER and MASTER nodes, and under supervision). Requires Zookeeper is running
+	 */
+	public static List<Statement> startNimbus(Configuration config) {
+		List<Statement> commands = new ArrayList<Statement>();
+		commands.addAll(Storm.startPacemakerDaemonSupervision(config.getImageUsername()));
+		commands.addAll(Storm.startNimbusDaemonSupervision(config.getImageUsername()));
+		return commands;
+	}
+	
+	/**
+	 * Wait until daemons of the node are ready (checked using their protocol, see ReadinessProbe)
+	 */
+	public static List<Statement> awaitDaemons(Configuration config, String... daemons) {
+		return StormDeployAlternative.awaitReady(config.getReadinessTimeout(), daemons);
+	}
+	
+	/**
+	 * Start remaining daemons (only on correct nodes, and under supervision). Requires Nimbus is running
+	 */
+	public static List<Statement> startDaemons(Configuration config) {
 		List<Statement> commands = new ArrayList<Statement>();
 		String username = config.getImageUsername();
-		commands.addAll(Zookeeper.startDaemonSupervision(username));
-		commands.addAll(Storm.startNimbusDaemonSupervision(username));
 		commands.addAll(Storm.startSupervisorDaemonSupervision(username));
 		commands.addAll(Storm.startUIDaemonSupervision(username));
 		commands.addAll(Storm.startDRPCDaemonSupervision(username));
@@ -98,41 +130,71 @@ public class NodeConfiguration {
 	
 	public static List<Statement> getRootCommands(String clustername, Credential credentials, Configuration config, List<String> zookeeperHostnames, List<String> drpcHostnames, String nimbusHostname, String uiHostname) {
 		List<Statement> commands = new ArrayList<Statement>();
-
-		PACKAGE_MANAGER pm = config.getPackageManager();
+		commands.addAll(getRootInstallCommands(credentials, config));
+		commands.addAll(getRootConfigureCommands(clustername, config, uiHostname));
+		return commands;
+	}
+	
+	/**
+	 * Root commands, which do not depend on addresses of other nodes.
+	 * 	Can be executed as soon as the node is running
+	 */
+	public static List<Statement> getRootInstallCommands(Credential credentials, Configuration config) {
+		List<Statement> commands = new ArrayList<Statement>();
 		
-		// format and mount local storage
+		// format and mount local storage (RAID0 over all instance-store devices)
 		if (config.isMountLocalStorage()) {
-			commands.add(exec("mkfs.ext4 /dev/sdb"));
-			commands.add(exec("mount /dev/sdb /mnt"));
-			commands.add(exec("chmod 777 /mnt"));
+			commands.addAll(Storage.mountInstanceStore());
 		}
-		// format and mount ebs storage
+		// format and mount ebs storage (RAID0, if more than one volume)
 		else if (config.getEBSStorageSize() > 0) {
-			commands.add(exec("mkdir /mnt"));
-			commands.add(exec("mkfs.ext4 /dev/sdx"));
-			commands.add(exec("mount /dev/sdx /mnt"));
-			commands.add(exec("chmod 777 /mnt"));
+			commands.addAll(Storage.mountEBSVolumes(config.getEBSVolumes()));
 		}
-
+		
+		// sysctl, limits, hugepages and MTU (reapplied at every boot)
+		commands.addAll(KernelTuning.configure(config));
+		
+		commands.addAll(getRootPackageCommands(credentials, config));
+		return commands;
+	}
+	
+	/**
+	 * Root commands installing packages. Each step is skipped if baked into image
+	 */
+	public static List<Statement> getRootPackageCommands(Credential credentials, Configuration config) {
+		List<Statement> commands = new ArrayList<Statement>();
+		
+		PACKAGE_MANAGER pm = config.getPackageManager();
+		commands.addAll(BakedImage.init());
 		
 		// Install system tools
-		commands.addAll(SystemTools.init(pm));
+		commands.addAll(BakedImage.unlessBaked("system-tools", SystemTools.init(pm)));
 
 		// Install and configure s3cmd (to allow communication with Amazon S3)
-		commands.addAll(S3CMD.install(pm));
+		commands.addAll(BakedImage.unlessBaked("s3cmd", S3CMD.install(pm)));
 
 		// Install and configure ec2-ami-tools (only if optional x509 credentials have been defined)
 		if (credentials.get_ec2_X509CertificatePath() != null && credentials.get_ec2_X509CertificatePath().length() > 0 && credentials.get_ec2_X509PrivateKeyPath() != null && credentials.get_ec2_X509PrivateKeyPath().length() > 0) {
-			commands.addAll(EC2Tools.install(pm));
+			commands.addAll(BakedImage.unlessBaked("ec2-tools", EC2Tools.install(pm)));
 		}
 
-		// Install & configure Ganglia
-		commands.addAll(Ganglia.install(pm,config.getImageUsername()));
-		commands.addAll(Ganglia.configure(clustername, uiHostname,pm,config.getImageUsername()));
+		// Install Ganglia
+		commands.addAll(BakedImage.unlessBaked("ganglia", Ganglia.install(pm,config.getImageUsername())));
+		
+		return commands;
+	}
+	
+	/**
+	 * Root commands, which require the address of the UI node
+	 */
+	public static List<Statement> getRootConfigureCommands(String clustername, Configuration config, String uiHostname) {
+		List<Statement> commands = new ArrayList<Statement>();
 
-		commands.addAll(Ganglia.start(pm,config.getImageUsername()));
+		PACKAGE_MANAGER pm = config.getPackageManager();
 
+		// Configure & start Ganglia
+		commands.addAll(Ganglia.configure(clustername, uiHostname,pm,config.getImageUsername()));
+		commands.addAll(Ganglia.start(pm,config.getImageUsername()));
 		
 		return commands;
 	}
@@ -7,7 +7,7 @@ import java.util.Random;
 import org.jclouds.scriptbuilder.domain.Statement;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-
+import dk.kaspergsm.stormdeploy.Tools;
 import dk.kaspergsm.stormdeploy.configurations.SystemTools.PACKAGE_MANAGER;
 
 /**
@@ -24,7 +24,7 @@ public class S3CMD {
 		if (pm == PACKAGE_MANAGER.APT) {
 			st.add(exec("wget -O- -q http://s3tools.org/repo/deb-all/stable/s3tools.key | apt-key add -"));
 			st.add(exec("wget -O/etc/apt/sources.list.d/s3tools.list http://s3tools.org/repo/deb-all/stable/s3tools.list"));
-			st.add(exec("apt-get update && apt-get install s3cmd"));
+			st.add(exec("apt-get update && apt-get install -y s3cmd"));
 			return st;
 		} else if (pm == PACKAGE_MANAGER.YUM){
 			//st.add(exec("wget -O/etc/yum.repos.d/s3tools.repo wget http://s3tools.org/repo/RHEL_6/s3tools.repo"));
@@ -44,47 +44,46 @@ public class S3CMD {
 	 */
 	public static List<Statement> configure(String identity, String credential) {
 		ArrayList<Statement> st = new ArrayList<Statement>();
-		st.add(exec("cd ~"));
-		st.add(exec("rm .s3cfg"));
-		st.add(exec("touch .s3cfg"));
-		st.add(exec("echo \"" + "[default]" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "access_key = " + identity + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "bucket_location = US" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "cloudfront_host = cloudfront.amazonaws.com" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "cloudfront_resource = /2010-07-15/distribution" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "default_mime_type = binary/octet-stream" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "delete_removed = False" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "dry_run = False" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "encoding = UTF-8" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "encrypt = False" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "follow_symlinks = False" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "force = False" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "get_continue = False" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "gpg_command = /usr/bin/gpg" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "gpg_decrypt = %(gpg_command)s -d --verbose --no-use-agent --batch --yes --passphrase-fd %(passphrase_fd)s -o %(output_file)s %(input_file)s" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "gpg_encrypt = %(gpg_command)s -c --verbose --no-use-agent --batch --yes --passphrase-fd %(passphrase_fd)s -o %(output_file)s %(input_file)s" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "gpg_passphrase = " + r.nextInt(99999) + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "guess_mime_type = True" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "host_base = s3.amazonaws.com" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "host_bucket = %(bucket)s.s3.amazonaws.com" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "human_readable_sizes = False" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "list_md5 = False" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "log_target_prefix = " + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "preserve_attrs = True" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "progress_meter = True" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "proxy_host = " + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "proxy_port = 0" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "recursive = False" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "recv_chunk = 4096" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "reduced_redundancy = False" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "secret_key = " + credential + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "send_chunk = 4096" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "simpledb_host = sdb.amazonaws.com" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "skip_existing = False" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "socket_timeout = 10" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "urlencoding_mode = normal" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "use_https = True" + "\" >> .s3cfg"));
-		st.add(exec("echo \"" + "verbosity = WARNING" + "\" >> .s3cfg"));
+		StringBuilder sb = new StringBuilder();
+		sb.append("[default]").append("\n");
+		sb.append("access_key = " + identity).append("\n");
+		sb.append("bucket_location = US").append("\n");
+		sb.append("cloudfront_host = cloudfront.amazonaws.com").append("\n");
+		sb.append("cloudfront_resource = /2010-07-15/distribution").append("\n");
+		sb.append("default_mime_type = binary/octet-stream").append("\n");
+		sb.append("delete_removed = False").append("\n");
+		sb.append("dry_run = False").append("\n");
+		sb.append("encoding = UTF-8").append("\n");
+		sb.append("encrypt = False").append("\n");
+		sb.append("follow_symlinks = False").append("\n");
+		sb.append("force = False").append("\n");
+		sb.append("get_continue = False").append("\n");
+		sb.append("gpg_command = /usr/bin/gpg").append("\n");
+		sb.append("gpg_decrypt = %(gpg_command)s -d --verbose --no-use-agent --batch --yes --passphrase-fd %(passphrase_fd)s -o %(output_file)s %(input_file)s").append("\n");
+		sb.append("gpg_encrypt = %(gpg_command)s -c --verbose --no-use-agent --batch --yes --passphrase-fd %(passphrase_fd)s -o %(output_file)s %(input_file)s").append("\n");
+		sb.append("gpg_passphrase = " + r.nextInt(99999)).append("\n");
+		sb.append("guess_mime_type = True").append("\n");
+		sb.append("host_base = s3.amazonaws.com").append("\n");
+		sb.append("host_bucket = %(bucket)s.s3.amazonaws.com").append("\n");
+		sb.append("human_readable_sizes = False").append("\n");
+		sb.append("list_md5 = False").append("\n");
+		sb.append("log_target_prefix = ").append("\n");
+		sb.append("preserve_attrs = True").append("\n");
+		sb.append("progress_meter = True").append("\n");
+		sb.append("proxy_host = ").append("\n");
+		sb.append("proxy_port = 0").append("\n");
+		sb.append("recursive = False").append("\n");
+		sb.append("recv_chunk = 4096").append("\n");
+		sb.append("reduced_redundancy = False").append("\n");
+		sb.append("secret_key = " + credential).append("\n");
+		sb.append("send_chunk = 4096").append("\n");
+		sb.append("simpledb_host = sdb.amazonaws.com").append("\n");
+		sb.append("skip_existing = False").append("\n");
+		sb.append("socket_timeout = 10").append("\n");
+		sb.append("urlencoding_mode = normal").append("\n");
+		sb.append("use_https = True").append("\n");
+		sb.append("verbosity = WARNING").append("\n");
+		st.addAll(Tools.writeFile(sb.toString(), "~/.s3cfg"));
 		return st;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,70 @@
+package dk.kaspergsm.stormdeploy.configurations;
+
+import static org.jclouds.scriptbuilder.domain.Statements.exec;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import org.jclouds.compute.domain.Hardware;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.scriptbuilder.domain.Statement;
+import dk.kaspergsm.stormdeploy.Tools;
+import dk.kaspergsm.stormdeploy.userprovided.Configuration;
+
+/**
+ * Contains all methods to configure the Storm scheduler, and describe nodes to it.
+ * 	Every node gets supervisor.scheduler.meta from the configured SchedulerMetaGenerator, and
+ * 	WORKER nodes get the cpu and memory capacities used by the ResourceAwareScheduler.
+ *
+ * @author Kasper Grud Skat Madsen
+ */
+public class Scheduler {
+	public static final String DISTRIBUTED_FIXED_SCHEDULER = "de.unifreiburg.informatik.websci.scheduler.DistributedFixedScheduler";
+
+	/**
+	 * Commands appending scheduler settings to storm.yaml of node. Must be executed before starting Storm.
+	 * 	Returns no commands if nodeName is null (node runs neither MASTER nor WORKER)
+	 */
+	public static List<Statement> configure(String nodeName, String instanceType, Hardware hardware, List<String> daemons, Map<String, Integer> tuning, NodeMetadata n, Configuration config) {
+		List<Statement> st = new ArrayList<Statement>();
+		if (nodeName == null)
+			return st;
+
+		// Scheduler jar is only needed by nimbus
+		if (daemons.contains("MASTER") && config.getSchedulerPath() != null)
+			st.addAll(Tools.download("~/storm/lib/", config.getSchedulerPath(), false, false, "Storm-Scheduler.jar"));
+
+		StringBuilder yaml = new StringBuilder();
+		if (config.getSchedulerClass() != null)
+			yaml.append("storm.scheduler: ").append(quote(config.getSchedulerClass())).append("\n");
+		yaml.append("supervisor.scheduler.meta:\n");
+		for (Entry<String, String> e : getGenerator(config).generate(nodeName, instanceType, hardware, n, config).entrySet())
+			yaml.append("    ").append(e.getKey()).append(": ").append(quote(e.getValue())).append("\n");
+
+		// Capacities for the ResourceAwareScheduler (percent of a core, and MB available to workers)
+		if (daemons.contains("WORKER") && (hardware != null || !tuning.isEmpty())) {
+			yaml.append("supervisor.cpu.capacity: ").append(StormTuning.getCores(hardware) * 100.0).append("\n");
+			yaml.append("supervisor.memory.capacity.mb: ").append((double) StormTuning.getSlots(config, hardware, daemons, tuning) * StormTuning.getWorkerHeapMb(config, hardware, daemons, tuning)).append("\n");
+		}
+
+		st.addAll(Tools.writeFile(yaml.toString(), "~/storm/conf/storm-scheduler.yaml"));
+		st.add(exec("cat ~/storm/conf/storm-scheduler.yaml >> ~/storm/conf/storm.yaml"));
+		return st;
+	}
+
+	private static SchedulerMetaGenerator getGenerator(Configuration config) {
+		try {
+			return Class.forName(config.getSchedulerMetaGenerator()).asSubclass(SchedulerMetaGenerator.class).getConstructor().newInstance();
+		} catch (InvocationTargetException ex) {
+			throw new IllegalStateException("Constructor of scheduler-meta-generator " + config.getSchedulerMetaGenerator() + " failed", ex.getCause());
+		} catch (Exception ex) {
+			// validated when configuration is parsed
+			throw new IllegalStateException("Could not create scheduler-meta-generator " + config.getSchedulerMetaGenerator(), ex);
+		}
+	}
+
+	private static String quote(String value) {
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+}
@@ -0,0 +1,25 @@
+package dk.kaspergsm.stormdeploy.configurations;
+
+import java.util.Map;
+import org.jclouds.compute.domain.Hardware;
+import org.jclouds.compute.domain.NodeMetadata;
+import dk.kaspergsm.stormdeploy.userprovided.Configuration;
+
+/**
+ * Generates supervisor.scheduler.meta of a node. Implementations are selected with scheduler-meta-generator
+ * 	in configuration.yaml, and must have a public no-argument constructor
+ *
+ * @author Kasper Grud Skat Madsen
+ */
+public interface SchedulerMetaGenerator {
+
+	/**
+	 * Returns map{key, value} written to supervisor.scheduler.meta
+	 *
+	 * @param nodeName
+	 *            Scheduler name of node (spout, node0...nodeX)
+	 * @param hardware
+	 *            Hardware profile of node, or null if unknown
+	 */
+	Map<String, String> generate(String nodeName, String instanceType, Hardware hardware, NodeMetadata node, Configuration config);
+}
@@ -0,0 +1,98 @@
+package dk.kaspergsm.stormdeploy.configurations;
+
+import static org.jclouds.scriptbuilder.domain.Statements.exec;
+import java.util.ArrayList;
+import java.util.List;
+import org.jclouds.scriptbuilder.domain.Statement;
+import com.google.common.base.Joiner;
+import dk.kaspergsm.stormdeploy.Tools;
+import dk.kaspergsm.stormdeploy.userprovided.Configuration;
+
+/**
+ * Contains all methods to format and mount additional storage on nodes.
+ * 	All unused devices of a kind are striped as RAID0 (if more than one) and mounted on MOUNT_POINT.
+ * 	The filesystem is labelled, so running the commands again (or rebooting) only mounts it.
+ *
+ * @author Kasper Grud Skat Madsen
+ */
+public class Storage {
+	public static final String MOUNT_POINT = "/mnt";
+	private static final String SCRIPT = "/usr/local/sbin/sda-storage";
+
+	/**
+	 * Usage: sda-storage KIND COUNT MOUNTPOINT XFS_OPTIONS EXT4_OPTIONS
+	 * 	waits up to a minute for COUNT devices of KIND, then uses the devices found
+	 */
+	private static final String SCRIPT_CONTENT = Joiner.on("\n").join(
+			"#!/bin/bash",
+			"KIND=$1; COUNT=$2; MNT=$3; XFS_OPTS=$4; EXT4_OPTS=$5; LABEL=sda-$KIND",
+			"devices() {",
+			"  for d in $(lsblk -dpn -o NAME,TYPE | awk '$2==\"disk\" {print $1}'); do",
+			"    lsblk -n -o MOUNTPOINT $d | grep -v \"^$MNT$\" | grep -q '[^[:space:]]' && continue",
+			"    lsblk -n -o TYPE $d | grep -q raid && continue",
+			"    name=$(basename $d); model=$(cat /sys/block/$name/device/model 2>/dev/null)",
+			"    case \"$KIND:$name:$model\" in",
+			"      ebs:nvme*Elastic*|ebs:sd[f-p]:*|ebs:xvd[f-p]:*) echo $d;;",
+			"      instance-store:nvme*Instance*|instance-store:sd[b-z]:*|instance-store:xvd[b-z]:*) echo $d;;",
+			"    esac",
+			"  done",
+			"}",
+			"DEV=$(blkid -L $LABEL)",
+			"if [ -z \"$DEV\" ]; then",
+			"  for i in $(seq 1 30); do",
+			"    DEVS=$(devices); [ $(echo $DEVS | wc -w) -ge $COUNT ] && break; sleep 2",
+			"  done",
+			"  if [ -z \"$DEVS\" ]; then echo \"No $KIND devices found\"; mkdir -p $MNT; chmod 777 $MNT; exit 0; fi",
+			"  echo \"Using $KIND devices: \"$DEVS",
+			"  for d in $DEVS; do umount $d 2>/dev/null; sed -i \"\\|^$d|d\" /etc/fstab; done",
+			"  if [ $(echo $DEVS | wc -w) -gt 1 ]; then",
+			"    which mdadm >/dev/null || DEBIAN_FRONTEND=noninteractive apt-get install -y mdadm || yum -y install mdadm",
+			"    mdadm --create /dev/md/$LABEL --run --level=0 --raid-devices=$(echo $DEVS | wc -w) $DEVS || exit 1",
+			"    DEV=/dev/md/$LABEL",
+			"  else",
+			"    DEV=$DEVS",
+			"  fi",
+			"  if which mkfs.xfs >/dev/null; then mkfs.xfs -f -L $LABEL $DEV || exit 1; else mkfs.ext4 -F -m 0 -L $LABEL $DEV || exit 1; fi",
+			"fi",
+			"mkdir -p $MNT",
+			"[ \"$(blkid -o value -s TYPE $DEV)\" = xfs ] && OPTS=$XFS_OPTS || OPTS=$EXT4_OPTS",
+			"grep -q \"^LABEL=$LABEL \" /etc/fstab || echo \"LABEL=$LABEL $MNT auto $OPTS,nofail 0 2\" >> /etc/fstab",
+			"if ! findmnt -rn -S LABEL=$LABEL $MNT >/dev/null; then",
+			"  mountpoint -q $MNT && umount $MNT",
+			"  mount $MNT || exit 1",
+			"fi",
+			"chmod 777 $MNT",
+			"");
+
+	/**
+	 * Stripe the EBS volumes attached by EBSProvisioner, and mount them on MOUNT_POINT
+	 */
+	public static List<Statement> mountEBSVolumes(int volumes) {
+		return mount("ebs", volumes, "noatime", "noatime");
+	}
+
+	/**
+	 * Stripe all instance-store devices (NVMe, or ephemeral devices mapped by LaunchNodeTask), and mount them on MOUNT_POINT.
+	 * 	Instance-store is lost when the instance stops anyway, so write barriers are disabled where the filesystem supports it
+	 */
+	public static List<Statement> mountInstanceStore() {
+		return mount("instance-store", 1, "noatime", "noatime,nobarrier");
+	}
+
+	/**
+	 * Directory holding Storm and Zookeeper state. MOUNT_POINT if additional storage is mounted, otherwise home directory
+	 */
+	public static String getDataDir(Configuration config) {
+		if (config.isMountLocalStorage() || config.getEBSStorageSize() > 0)
+			return MOUNT_POINT;
+		return "/home/" + config.getImageUsername();
+	}
+
+	private static List<Statement> mount(String kind, int devices, String xfsOptions, String ext4Options) {
+		ArrayList<Statement> st = new ArrayList<Statement>();
+		st.addAll(Tools.writeFile(SCRIPT_CONTENT, SCRIPT));
+		st.add(exec("chmod 755 " + SCRIPT));
+		st.add(exec(SCRIPT + " " + kind + " " + devices + " " + MOUNT_POINT + " " + xfsOptions + " " + ext4Options));
+		return st;
+	}
+}
@@ -11,6 +11,7 @@ import java.util.List;
 import org.jclouds.scriptbuilder.domain.Statement;
 
 import dk.kaspergsm.stormdeploy.Tools;
+import dk.kaspergsm.stormdeploy.artifacts.ArtifactMirror;
 
 
 /**
@@ -19,37 +20,53 @@ import dk.kaspergsm.stormdeploy.Tools;
  * @author Kasper Grud Skat Madsen
  */
 public class Storm {
+	public static final int PACEMAKER_PORT = 6699;
+	private static final String PACEMAKER_STATE_FACTORY = "org.apache.storm.pacemaker.pacemaker_state_factory";
 
-	public static List<Statement> download(String stormRemoteLocation) {
-        return Tools.download("~/", stormRemoteLocation, true, true, "storm");
+	public static List<Statement> download(String stormRemoteLocation, ArtifactMirror mirror) {
+        return Tools.download("~/", stormRemoteLocation, true, true, "storm", mirror);
 	}
 	
 	/**
-	 * Write storm/conf/storm.yaml (basic settings only)
+	 * Write storm/conf/storm.yaml (basic settings only).
+	 * 	Local state and logs are kept in dataDir. Worker heartbeats go to Pacemaker, if any pacemakerHostname is given
 	 */
-	public static List<Statement> configure(String hostname, List<String> zkNodesHostname, List<String> drpcHostname, String userName) {
+	public static List<Statement> configure(String hostname, List<String> zkNodesHostname, List<String> drpcHostname, List<String> pacemakerHostname, String userName, String dataDir) {
 		ArrayList<Statement> st = new ArrayList<Statement>();
-		st.add(exec("cd ~/storm/conf/"));
-		st.add(exec("touch storm.yaml"));
 		
-		// local dir:
-		st.add(exec("echo storm.local.dir: \\\"/home/ec2-user/storm-local\\\" >> storm.yaml"));
-		// Add nimbus.host
-		st.add(exec("echo nimbus.seeds: [\"" + hostname + "\"] >> storm.yaml"));
-		st.add(exec("echo 'supervisor.worker.start.timeout.secs: 10000' >> storm.yaml"));
-		st.add(exec("echo 'supervisor.worker.timeout.secs: 10000' >> storm.yaml"));
+		// Logs (storm.log.dir is only read by newer versions, so logs is also linked)
+		st.add(exec("mkdir -p " + dataDir + "/storm-local " + dataDir + "/storm-logs"));
+		st.add(exec("rm -rf ~/storm/logs && ln -s " + dataDir + "/storm-logs ~/storm/logs"));
+		
+		// storm.yaml is written as a whole (so setup can be executed again), settings of StormTuning and Scheduler are appended after
+		StringBuilder yaml = new StringBuilder();
+		yaml.append("storm.local.dir: \"" + dataDir + "/storm-local\"\n");
+		yaml.append("storm.log.dir: \"" + dataDir + "/storm-logs\"\n");
+		yaml.append("nimbus.seeds: [\"" + hostname + "\"]\n");
+		yaml.append("supervisor.worker.start.timeout.secs: 10000\n");
+		yaml.append("supervisor.worker.timeout.secs: 10000\n");
 
 		// Add storm.zookeeper.servers
-		st.add(exec("echo storm.zookeeper.servers: >> storm.yaml"));
-		for (int i = 1; i <= zkNodesHostname.size(); i++)
-			st.add(exec("echo - \"" + zkNodesHostname.get(i-1) + "\" >> storm.yaml"));
+		yaml.append("storm.zookeeper.servers:\n");
+		for (String zk : zkNodesHostname)
+			yaml.append("- \"" + zk + "\"\n");
 
 		// Add drpc.servers
 		if (drpcHostname.size() > 0) {
-			st.add(exec("echo drpc.servers: >> storm.yaml"));
-			for (int i = 1; i <= drpcHostname.size(); i++)
-				st.add(exec("echo - \"" + drpcHostname.get(i-1) + "\" >> storm.yaml"));
+			yaml.append("drpc.servers:\n");
+			for (String drpc : drpcHostname)
+				yaml.append("- \"" + drpc + "\"\n");
+		}
+
+		// Add pacemaker.servers (heartbeats are kept in Pacemaker instead of Zookeeper)
+		if (pacemakerHostname.size() > 0) {
+			yaml.append("pacemaker.servers:\n");
+			for (String pacemaker : pacemakerHostname)
+				yaml.append("- \"" + pacemaker + "\"\n");
+			yaml.append("storm.cluster.state.store: \"" + PACEMAKER_STATE_FACTORY + "\"\n");
 		}
+		st.addAll(Tools.writeFile(yaml.toString(), "~/storm/conf/storm.yaml"));
+		st.add(exec("cd ~/storm/conf/"));
 
 		// Add supervisor metadata
 		/*st.add(exec("echo supervisor.scheduler.meta: >> storm.yaml"));
@@ -60,58 +77,62 @@ public class Storm {
 		st.add(exec("chown -R " + userName + ":" + userName + " ~/storm"));
 		
 		// Add storm to execution PATH
-		st.add(exec("echo \"export PATH=\\\"\\$HOME/storm/bin:\\$PATH\\\"\" >> ~/.bashrc"));
+		st.add(Tools.appendLine("export PATH=\"$HOME/storm/bin:$PATH\"", "~/.bashrc"));
                 
 		return st;
 	}
 	
 	/**
-	 * Uses Monitor to restart daemon, if it stops
+	 * Uses NodeSupervisor to restart daemon, if it stops
 	 */
 	public static List<Statement> startNimbusDaemonSupervision(String username) {
 		ArrayList<Statement> st = new ArrayList<Statement>();
-		st.add(exec("cd ~"));
-		st.add(exec("case $(head -n 1 ~/daemons) in *MASTER*) java -cp \"sda/storm-deploy-alternative.jar\" dk.kaspergsm.stormdeploy.image.ProcessMonitor backtype.storm.daemon.nimbus storm/bin/storm nimbus ;; esac &"));
+		st.addAll(StormDeployAlternative.supervise("MASTER"));
+		return st;
+	}
+	
+	/**
+	 * Uses NodeSupervisor to restart daemon, if it stops. Nimbus and supervisors send heartbeats to Pacemaker, so it is started with Nimbus
+	 */
+	public static List<Statement> startPacemakerDaemonSupervision(String username) {
+		ArrayList<Statement> st = new ArrayList<Statement>();
+		st.addAll(StormDeployAlternative.supervise("PACEMAKER"));
 		return st;
 	}
 	
 	/**
-	 * Uses Monitor to restart daemon, if it stops
+	 * Uses NodeSupervisor to restart daemon, if it stops
 	 */
 	public static List<Statement> startSupervisorDaemonSupervision(String username) {
 		ArrayList<Statement> st = new ArrayList<Statement>();
-		st.add(exec("cd ~"));
-		st.add(exec("case $(head -n 1 ~/daemons) in *WORKER*) java -cp \"sda/storm-deploy-alternative.jar\" dk.kaspergsm.stormdeploy.image.ProcessMonitor backtype.storm.daemon.supervisor storm/bin/storm supervisor ;; esac &"));
+		st.addAll(StormDeployAlternative.supervise("WORKER"));
 		return st;
 	}
 	
 	/**
-	 * Uses Monitor to restart daemon, if it stops
+	 * Uses NodeSupervisor to restart daemon, if it stops
 	 */
 	public static List<Statement> startUIDaemonSupervision(String username) {
 		ArrayList<Statement> st = new ArrayList<Statement>();
-		st.add(exec("cd ~"));
-		st.add(exec("case $(head -n 1 ~/daemons) in *UI*) java -cp \"sda/storm-deploy-alternative.jar\" dk.kaspergsm.stormdeploy.image.ProcessMonitor backtype.storm.ui.core storm/bin/storm ui ;; esac &"));
+		st.addAll(StormDeployAlternative.supervise("UI"));
 		return st;
 	}
 	
 	/**
-	 * Uses Monitor to restart daemon, if it stops
+	 * Uses NodeSupervisor to restart daemon, if it stops
 	 */
 	public static List<Statement> startDRPCDaemonSupervision(String username) {
 		ArrayList<Statement> st = new ArrayList<Statement>();
-		st.add(exec("cd ~"));
-		st.add(exec("case $(head -n 1 ~/daemons) in *DRPC*) java -cp \"sda/storm-deploy-alternative.jar\" dk.kaspergsm.stormdeploy.image.ProcessMonitor backtype.storm.daemon.drpc storm/bin/storm drpc ;; esac &"));
+		st.addAll(StormDeployAlternative.supervise("DRPC"));
 		return st;
 	}
 	
     /**
-     * Uses Monitor to restart daemon, if it stops
+     * Uses NodeSupervisor to restart daemon, if it stops
      */
 	public static List<Statement> startLogViewerDaemonSupervision(String username) {
 		ArrayList<Statement> st = new ArrayList<Statement>();
-		st.add(exec("cd ~"));
-		st.add(exec("case $(head -n 1 ~/daemons) in *LOGVIEWER*) java -cp \"sda/storm-deploy-alternative.jar\" dk.kaspergsm.stormdeploy.image.ProcessMonitor backtype.storm.daemon.logviewer storm/bin/storm logviewer ;; esac &"));
+		st.addAll(StormDeployAlternative.supervise("LOGVIEWER"));
 		return st;
 	}
 	
@@ -2,10 +2,25 @@ package dk.kaspergsm.stormdeploy.configurations;
 
 import static org.jclouds.scriptbuilder.domain.Statements.exec;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.List;
+import org.jclouds.compute.ComputeService;
+import org.jclouds.compute.domain.ExecResponse;
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.domain.NodeMetadataBuilder;
+import org.jclouds.io.Payloads;
 import org.jclouds.scriptbuilder.domain.Statement;
+import org.jclouds.ssh.SshClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.google.common.base.Joiner;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
 import dk.kaspergsm.stormdeploy.Tools;
+import dk.kaspergsm.stormdeploy.image.NodeSupervisor;
 import dk.kaspergsm.stormdeploy.userprovided.Configuration;
 
 /**
@@ -14,9 +29,91 @@ import dk.kaspergsm.stormdeploy.userprovided.Configuration;
  * @author Kasper Grud Skat Madsen
  */
 public class StormDeployAlternative {
+	private static Logger log = LoggerFactory.getLogger(StormDeployAlternative.class);
+	public static final String REMOTE_JAR = "sda/storm-deploy-alternative.jar";
 
-	public static List<Statement> download() {
-		return Tools.download("~", "https://s3-eu-west-1.amazonaws.com/storm-deploy-alternative/sda.tar.gz", true, true);
+	/**
+	 * Jar of the running application. Nodes execute NodeSupervisor, ReadinessProbe and MemoryMonitor from a copy of it,
+	 * 	so they always run the same version as the deploying client
+	 */
+	public static File getLocalJar() {
+		try {
+			File jar = new File(StormDeployAlternative.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+			if (jar.isFile())
+				return jar;
+		} catch (URISyntaxException ex) {}
+		throw new IllegalStateException("Not executed from storm-deploy-alternative.jar (build it using mvn package), which is needed on the nodes");
+	}
+	
+	/**
+	 * Upload jar of the running application to ~/sda on node over sftp, unless the same jar is already present
+	 */
+	public static void uploadJar(NodeMetadata node, ComputeService compute, Configuration config) throws IOException {
+		File jar = getLocalJar();
+		String sha256 = Files.hash(jar, Hashing.sha256()).toString();
+		SshClient ssh = compute.getContext().utils().sshForNode().apply(
+				NodeMetadataBuilder.fromNodeMetadata(node).credentials(Tools.getPrivateKeyCredentials(config)).build());
+		try {
+			ssh.connect();
+			ExecResponse existing = ssh.exec("sha256sum " + REMOTE_JAR);
+			if (existing.getExitStatus() == 0 && existing.getOutput().startsWith(sha256)) {
+				log.info("storm-deploy-alternative.jar already uploaded to " + ssh.getHostAddress());
+				return;
+			}
+			
+			long start = System.currentTimeMillis();
+			ssh.exec("mkdir -p sda");
+			ssh.put(REMOTE_JAR, Payloads.newFilePayload(jar));
+			log.info("Uploaded storm-deploy-alternative.jar to " + ssh.getHostAddress() + " in " + (System.currentTimeMillis() - start) / 1000 + "s");
+		} finally {
+			ssh.disconnect();
+		}
+	}
+	
+	/**
+	 * Write ~/sda/supervise, which starts a daemon under NodeSupervisor (and NodeSupervisor itself, if not running).
+	 * 	Usage: supervise DAEMON. Requires uploadJar has been executed
+	 */
+	public static List<Statement> writeSuperviseScript(Configuration config) {
+		String script = Joiner.on("\n").join(
+				"#!/bin/bash",
+				"PORT=" + NodeSupervisor.PORT,
+				"request() { exec 3<>/dev/tcp/127.0.0.1/$PORT && echo \"$1\" >&3 && cat <&3; }",
+				"if ! (exec 3<>/dev/tcp/127.0.0.1/$PORT) 2>/dev/null; then",
+				"  mkdir -p ~/sda/run",
+				"  cd ~ && nohup java -Xmx32m -Xss256k -XX:+UseSerialGC -XX:TieredStopAtLevel=1"
+						+ " -Dsda.health.interval=" + config.getHealthCheckInterval()
+						+ " -Dsda.health.failures=" + config.getHealthCheckFailures()
+						+ " -Dsda.health.startup=" + config.getReadinessTimeout()
+						+ " -cp " + REMOTE_JAR + " dk.kaspergsm.stormdeploy.image.NodeSupervisor >> ~/sda/run/supervisor.out 2>&1 < /dev/null &",
+				"  for i in $(seq 1 60); do (exec 3<>/dev/tcp/127.0.0.1/$PORT) 2>/dev/null && break; sleep 1; done",
+				"fi",
+				"request \"start $1\"",
+				"");
+		ArrayList<Statement> st = new ArrayList<Statement>();
+		st.addAll(Tools.writeFile(script, "~/sda/supervise"));
+		st.add(exec("chmod 755 ~/sda/supervise"));
+		return st;
+	}
+	
+	/**
+	 * Start daemon under NodeSupervisor, only if node runs it. Requires writeSuperviseScript has been executed
+	 */
+	public static List<Statement> supervise(String daemon) {
+		ArrayList<Statement> st = new ArrayList<Statement>();
+		st.add(exec("case $(head -n 1 ~/daemons) in *" + daemon + "*) ~/sda/supervise " + daemon + " ;; esac"));
+		return st;
+	}
+	
+	/**
+	 * Wait until the daemons run by this node answer their readiness probe. Exits with non-zero status after timeout seconds.
+	 * 	Requires uploadJar has been executed
+	 */
+	public static List<Statement> awaitReady(int timeout, String... daemons) {
+		ArrayList<Statement> st = new ArrayList<Statement>();
+		st.add(exec("cd ~"));
+		st.add(exec("java -cp " + REMOTE_JAR + " dk.kaspergsm.stormdeploy.image.ReadinessProbe " + timeout + " " + Joiner.on(" ").join(daemons)));
+		return st;
 	}
 	
 	/**
@@ -31,17 +128,17 @@ public class StormDeployAlternative {
 	
 	public static List<Statement> writeConfigurationFiles(String localConfigurationFile, String localCredentialFile) {	
 		ArrayList<Statement> st = new ArrayList<Statement>();
-		st.add(exec("mkdir ~/sda/conf"));
-		st.addAll(Tools.echoFile(localConfigurationFile, "~/sda/conf/configuration.yaml"));
-		st.addAll(Tools.echoFile(localCredentialFile, "~/sda/conf/credential.yaml"));
+		st.add(exec("mkdir -p ~/sda/conf"));
+		st.addAll(Tools.uploadFile(localConfigurationFile, "~/sda/conf/configuration.yaml"));
+		st.addAll(Tools.uploadFile(localCredentialFile, "~/sda/conf/credential.yaml"));
 		return st;
 	}
 	
 	public static List<Statement> writeLocalSSHKeys(Configuration config) {
 		ArrayList<Statement> st = new ArrayList<Statement>();
-		st.add(exec("mkdir ~/.ssh/"));
-		st.addAll(Tools.echoFile(config.getPrivateKeyPath(), "~/.ssh/id_rsa"));
-		st.addAll(Tools.echoFile(config.getPublicKeyPath(), "~/.ssh/id_rsa.pub"));
+		st.add(exec("mkdir -p ~/.ssh/"));
+		st.addAll(Tools.uploadFile(config.getPrivateKeyPath(), "~/.ssh/id_rsa"));
+		st.addAll(Tools.uploadFile(config.getPublicKeyPath(), "~/.ssh/id_rsa.pub"));
 		// set permissions to 700, otherwise nodes cant communicate via ssh
 		st.add(exec("chmod -R 700 ~/.ssh/"));
 		return st;
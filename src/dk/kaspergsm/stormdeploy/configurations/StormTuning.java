@@ -0,0 +1,120 @@
+package dk.kaspergsm.stormdeploy.configurations;
+
+import static org.jclouds.scriptbuilder.domain.Statements.exec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.jclouds.compute.domain.Hardware;
+import org.jclouds.compute.domain.Processor;
+import org.jclouds.scriptbuilder.domain.Statement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import dk.kaspergsm.stormdeploy.Tools;
+import dk.kaspergsm.stormdeploy.userprovided.Configuration;
+
+/**
+ * Contains all methods to size Storm workers to the hardware of a node.
+ * 	Slots follow the number of cores, and the memory left after other daemons is split evenly between slots.
+ * 	Values given as tuning on the node line in configuration.yaml replace the derived values.
+ *
+ * @author Kasper Grud Skat Madsen
+ */
+public class StormTuning {
+	private static Logger log = LoggerFactory.getLogger(StormTuning.class);
+	public static final int FIRST_SLOT_PORT = 6700;
+	private static final int MIN_WORKER_HEAP_MB = 256;
+	private static final int PREFERRED_WORKER_HEAP_MB = 768;
+	private static final int MAX_WORKER_HEAP_MB = 8192;
+	private static final int DAEMON_HEAP_MB = 512;
+
+	/**
+	 * Commands appending worker settings to storm.yaml. Returns no commands if node does not run WORKER,
+	 * 	or if hardware is unknown and no tuning is given
+	 *
+	 * @param hardware
+	 *            Hardware profile of node, or null if unknown
+	 * @param tuning
+	 *            Overrides (slots, worker-heap-mb, netty-threads, netty-buffer-mb)
+	 */
+	public static List<Statement> configure(Configuration config, String nodeName, Hardware hardware, List<String> daemons, Map<String, Integer> tuning) {
+		ArrayList<Statement> st = new ArrayList<Statement>();
+		if (!daemons.contains("WORKER"))
+			return st;
+		if (hardware == null && tuning.isEmpty()) {
+			log.warn("Unknown hardware of " + nodeName + ", using Storm defaults");
+			return st;
+		}
+
+		int cores = getCores(hardware);
+		int slots = getSlots(config, hardware, daemons, tuning);
+		int heapMb = getWorkerHeapMb(config, hardware, daemons, tuning);
+		int nettyThreads = tuning.containsKey("netty-threads") ? tuning.get("netty-threads") : Math.max(1, Math.min(8, cores / slots));
+
+		// Bigger instances have more network bandwidth, so larger buffers are kept full
+		int nettyBufferMb = tuning.containsKey("netty-buffer-mb") ? tuning.get("netty-buffer-mb") : (cores >= 16 ? 16 : (cores >= 8 ? 8 : 5));
+
+		log.info("Tuning " + nodeName + ": " + slots + " slot(s), " + heapMb + "MB heap per worker, " + nettyThreads + " netty thread(s), " + nettyBufferMb + "MB netty buffer");
+
+		StringBuilder yaml = new StringBuilder();
+		yaml.append("supervisor.slots.ports:\n");
+		for (int i = 0; i < slots; i++)
+			yaml.append("    - ").append(FIRST_SLOT_PORT + i).append("\n");
+		yaml.append("worker.childopts: \"-Xms").append(heapMb).append("m -Xmx").append(heapMb).append("m")
+			.append(" -XX:+UseParNewGC -XX:+UseConcMarkSweepGC -XX:CMSInitiatingOccupancyFraction=70 -XX:+UseCMSInitiatingOccupancyOnly")
+			.append(" -Djava.net.preferIPv4Stack=true\"\n");
+		yaml.append("storm.messaging.netty.server_worker_threads: ").append(nettyThreads).append("\n");
+		yaml.append("storm.messaging.netty.client_worker_threads: ").append(nettyThreads).append("\n");
+		yaml.append("storm.messaging.netty.buffer_size: ").append(nettyBufferMb * 1024 * 1024).append("\n");
+
+		st.addAll(Tools.writeFile(yaml.toString(), "~/storm/conf/storm-tuning.yaml"));
+		st.add(exec("cat ~/storm/conf/storm-tuning.yaml >> ~/storm/conf/storm.yaml"));
+		return st;
+	}
+
+	/**
+	 * Number of cores of hardware, 1 if unknown
+	 */
+	public static int getCores(Hardware hardware) {
+		if (hardware == null)
+			return 1;
+		double cores = 0;
+		for (Processor p : hardware.getProcessors())
+			cores += p.getCores();
+		return Math.max(1, (int) cores);
+	}
+	
+	public static int getSlots(Configuration config, Hardware hardware, List<String> daemons, Map<String, Integer> tuning) {
+		if (tuning.containsKey("slots"))
+			return tuning.get("slots");
+		return Math.max(1, Math.min(getCores(hardware), getAvailableMb(config, hardware, daemons) / PREFERRED_WORKER_HEAP_MB));
+	}
+	
+	public static int getWorkerHeapMb(Configuration config, Hardware hardware, List<String> daemons, Map<String, Integer> tuning) {
+		if (tuning.containsKey("worker-heap-mb"))
+			return tuning.get("worker-heap-mb");
+		return Math.max(MIN_WORKER_HEAP_MB, Math.min(MAX_WORKER_HEAP_MB, getAvailableMb(config, hardware, daemons) / getSlots(config, hardware, daemons, tuning)));
+	}
+	
+	/**
+	 * Memory available to workers, 0 if hardware is unknown
+	 */
+	private static int getAvailableMb(Configuration config, Hardware hardware, List<String> daemons) {
+		if (hardware == null)
+			return 0;
+		return Math.max(MIN_WORKER_HEAP_MB, hardware.getRam() - getReservedMb(config, hardware.getRam(), daemons));
+	}
+
+	/**
+	 * Memory kept for the OS, the supervisor and other daemons on the node
+	 */
+	private static int getReservedMb(Configuration config, int ramMb, List<String> daemons) {
+		int reserved = Math.max(1024, ramMb / 5);
+		for (String daemon : daemons) {
+			if (daemon.equals("ZK") && config.getZKProfile().equals("performance"))
+				reserved += Math.max(256, Math.min(4096, ramMb / 4));	// heap set by Zookeeper java.env
+			else if (!daemon.equals("WORKER"))
+				reserved += DAEMON_HEAP_MB;
+		}
+		return reserved;
+	}
+}
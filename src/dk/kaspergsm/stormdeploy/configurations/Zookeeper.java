@@ -2,9 +2,15 @@ package dk.kaspergsm.stormdeploy.configurations;
 
 import static org.jclouds.scriptbuilder.domain.Statements.exec;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import org.jclouds.scriptbuilder.domain.Statement;
+import com.google.common.base.Joiner;
 import dk.kaspergsm.stormdeploy.Tools;
+import dk.kaspergsm.stormdeploy.artifacts.ArtifactMirror;
+import dk.kaspergsm.stormdeploy.userprovided.Configuration;
 
 /**
  * Contains all methods to configure Zookeeper on nodes
@@ -12,12 +18,23 @@ import dk.kaspergsm.stormdeploy.Tools;
  * @author Kasper Grud Skat Madsen
  */
 public class Zookeeper {
+	
+	/**
+	 * Heap is a quarter of memory (256MB - 4GB), as Zookeeper usually shares the node with other daemons
+	 */
+	private static final String JAVA_ENV_PERFORMANCE = Joiner.on("\n").join(
+			"ZK_HEAP_MB=$(awk '/MemTotal/ {m=int($2/1024/4); if (m<256) m=256; if (m>4096) m=4096; print m}' /proc/meminfo)",
+			"export JVMFLAGS=\"-Xms${ZK_HEAP_MB}m -Xmx${ZK_HEAP_MB}m -XX:+UseParNewGC -XX:+UseConcMarkSweepGC -XX:+CMSParallelRemarkEnabled -XX:+AlwaysPreTouch $JVMFLAGS\"",
+			"");
 
-	public static List<Statement> download(String zookeeperRemoteLocation) {
-		return Tools.download("~/", zookeeperRemoteLocation, true, true, "zookeeper");
+	public static List<Statement> download(String zookeeperRemoteLocation, ArtifactMirror mirror) {
+		return Tools.download("~/", zookeeperRemoteLocation, true, true, "zookeeper", mirror);
 	}
 
-	public static List<Statement> configure(List<String> zkNodesHostnames) {
+	/**
+	 * Write zoo.cfg and java.env, according to zk-profile
+	 */
+	public static List<Statement> configure(List<String> zkNodesHostnames, Configuration config) {
 		ArrayList<Statement> st = new ArrayList<Statement>();
 		StringBuilder sb = new StringBuilder();
 		for (int i = 1; i <= zkNodesHostnames.size(); i++) {
@@ -29,30 +46,91 @@ public class Zookeeper {
 			if (i != zkNodesHostnames.size())
 				sb.append("\\n"); // escaped newline
 		}
+		String dataDir = getDataDir(config);
+		String dataLogDir = getDataLogDir(config);
+		st.add(exec("mkdir -p " + dataDir + " " + dataLogDir));
 		st.add(exec("cd ~/zookeeper/conf/"));
 		st.add(exec("[ ! -e zoo.cfg ] && cp zoo_sample.cfg zoo.cfg && echo -e \"# the zookeeper ensemble\nserver.x\" >> zoo.cfg"));
-		st.add(exec("sed \"s|dataDir=.*|dataDir=/tmp/zktmp|\" -i \"zoo.cfg\""));	// set dataDir to /tmp/zktmp
+		st.add(exec("sed \"s|dataDir=.*|dataDir=" + dataDir + "|\" -i \"zoo.cfg\""));	// set dataDir
 		st.add(exec("sed \"s/server.*/server.x/\" -i \"zoo.cfg\""));				// convert each serverline to server.x
 		st.add(exec("sed '$!N; /^\\(.*\\)\\n\\1$/!P; D' -i \"zoo.cfg\""));			// delete duplicate lines => one server.x
 		st.add(exec("sed \"s/server.x/" + sb.toString() + "/\" -i \"zoo.cfg\""));	// replace server.x with new lines
+		st.add(exec(setting("dataLogDir", dataLogDir)));
+		for (Entry<String, String> e : getProfileSettings(config).entrySet())
+			st.add(exec(setting(e.getKey(), e.getValue())));
+		
+		// JVM flags, heap is sized from the memory of the node (zkEnv.sh sources java.env)
+		if (config.getZKProfile().equals("performance"))
+			st.addAll(Tools.writeFile(JAVA_ENV_PERFORMANCE, "~/zookeeper/conf/java.env"));
+		
+		st.addAll(writeZKMyIds(zkNodesHostnames, dataDir));
 		return st;
 	}
 	
-	public static List<Statement> writeZKMyIds(String username, Integer zkid) {
+	/**
+	 * Snapshots. With the performance profile, snapshots are kept off the device holding the transaction log
+	 */
+	public static String getDataDir(Configuration config) {
+		if (config.getZKProfile().equals("performance") && !Storage.getDataDir(config).equals("/home/" + config.getImageUsername()))
+			return "/home/" + config.getImageUsername() + "/zookeeper";
+		return Storage.getDataDir(config) + "/zookeeper";
+	}
+	
+	/**
+	 * Transaction log (fsync latency of the log bounds write latency of Zookeeper). With the performance profile it is kept on
+	 * 	the data device (instance store or EBS, see Storage), which it shares with storm.local.dir and the Storm logs, but not with snapshots
+	 */
+	public static String getDataLogDir(Configuration config) {
+		if (config.getZKProfile().equals("performance"))
+			return Storage.getDataDir(config) + "/zookeeper-txlog";
+		return getDataDir(config);
+	}
+	
+	/**
+	 * Settings written to zoo.cfg (besides ensemble, dataDir and dataLogDir)
+	 */
+	private static Map<String, String> getProfileSettings(Configuration config) {
+		LinkedHashMap<String, String> settings = new LinkedHashMap<String, String>();
+		
+		// Purge old snapshots and transaction logs every hour
+		settings.put("autopurge.snapRetainCount", "3");
+		settings.put("autopurge.purgeInterval", "1");
+		
+		if (config.getZKProfile().equals("performance")) {
+			settings.put("tickTime", "2000");
+			settings.put("globalOutstandingLimit", "5000");		// Storm heartbeats produce many small writes
+			settings.put("preAllocSize", "131072");				// grow transaction log in 128MB steps
+			settings.put("maxClientCnxns", "0");					// every worker on a node connects from the same address
+		}
+		return settings;
+	}
+	
+	/**
+	 * Replace key in zoo.cfg, or append it if missing
+	 */
+	private static String setting(String key, String value) {
+		return "grep -q '^" + key + "=' zoo.cfg && sed -i 's|^" + key + "=.*|" + key + "=" + value + "|' zoo.cfg || echo '" + key + "=" + value + "' >> zoo.cfg";
+	}
+	
+	/**
+	 * Write myid, derived from the position of this node in the ensemble.
+	 * 	Each node finds itself by matching its own addresses against zkNodesHostnames,
+	 * 	so the same statements can be executed on all nodes after boot.
+	 */
+	public static List<Statement> writeZKMyIds(List<String> zkNodesHostnames, String dataDir) {
 		ArrayList<Statement> st = new ArrayList<Statement>();
-		st.add(exec("mkdir -p /tmp/zktmp"));												// ensure folders exist
-		st.add(exec("chown " + username + " /tmp/zktmp"));
-		st.add(exec("echo " + zkid + " > /tmp/zktmp/myid"));								// write myid
+		st.add(exec("mkdir -p " + dataDir));												// ensure folders exist
+		for (int i = 1; i <= zkNodesHostnames.size(); i++)
+			st.add(exec("if ip -o -4 addr | grep -qwF \"" + zkNodesHostnames.get(i-1) + "\"; then echo " + i + " > " + dataDir + "/myid; fi"));	// write myid
 		return st;
 	}
 	
 	/**
-	 * Uses Monitor to restart daemon, if it stops
+	 * Uses NodeSupervisor to restart daemon, if it stops
 	 */
 	public static List<Statement> startDaemonSupervision(String username) {
 		ArrayList<Statement> st = new ArrayList<Statement>();
-		st.add(exec("cd ~"));
-		st.add(exec("case $(head -n 1 ~/daemons) in *ZK*) java -cp \"sda/storm-deploy-alternative.jar\" dk.kaspergsm.stormdeploy.image.ProcessMonitor org.apache.zookeeper.server zookeeper/bin/zkServer.sh start ;; esac &"));
+		st.addAll(StormDeployAlternative.supervise("ZK"));
 		return st;
 	}
 }
@@ -1,24 +1,14 @@
 package dk.kaspergsm.stormdeploy.image;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.lang.management.ManagementFactory;
-import java.lang.management.MemoryMXBean;
-import java.util.ArrayList;
-import java.util.Arrays;
-import javax.management.remote.JMXConnector;
-import javax.management.remote.JMXConnectorFactory;
-import javax.management.remote.JMXServiceURL;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-//import com.sun.tools.attach.VirtualMachine;
 
 /**
- * Continuously monitors free memory on node
- * if freeMemory < 10% on node, do garbage collection on all JVM.
+ * Continuously monitors memory pressure on node
+ * if processes stall waiting for memory, do garbage collection on the JVMs expected to give back most memory (see TargetedGC).
  * 	This is needed to ensure all java processes give back their unused memory when needed.
+ * 	Pressure is read from /proc/pressure/memory (PSI). Kernels without PSI fall back to MemAvailable in /proc/meminfo.
  * 
  * can be executed by:
  * java -cp "storm-deploy-alternative.jar:/usr/lib/jvm/java-7-openjdk-amd64/lib/tools.jar" dk.kaspergsm.stormdeploy.image.MemoryMonitor
@@ -27,35 +17,31 @@ import org.slf4j.LoggerFactory;
  */
 class MemoryMonitor {
 	private static Logger log = LoggerFactory.getLogger(MemoryMonitor.class);
+	private static final int SAMPLE_INTERVAL = 5;
+	private static final int GC_COOLDOWN = 30;
+	private static final long PSI_SOME_THRESHOLD = 1000;	// some task stalled on memory 10% of the last 10s (hundredths of a percent)
+	private static final long PSI_FULL_THRESHOLD = 200;		// all tasks stalled on memory 2% of the last 10s
+	private static final long MIN_AVAILABLE_PERCENT = 10;	// without PSI
+	private static final long TARGET_AVAILABLE_PERCENT = 20;
+	private static final long MIN_RECLAIM = 256 * 1024 * 1024;
+	private static final ProcReader _meminfo = new ProcReader("/proc/meminfo");
+	private static final ProcReader _pressure = new ProcReader("/proc/pressure/memory");
+	private static final TargetedGC _gc = new TargetedGC();
 	
 	public static void main(String[] args) throws IOException {
 		log.info("Initialized MemoryMonitor");
 		log.info("Software for helping Java proceses share memory");
-		log.info("it works by invoking garbage collection on all Java processes as needed");
+		log.info("it works by invoking garbage collection on the Java processes giving back most memory, as needed");
+		boolean psi = _pressure.read();
+		log.info(psi ? "Using memory pressure stall information from /proc/pressure/memory" : "Kernel has no PSI, using MemAvailable from /proc/meminfo");
 		
 		while (true) {
 			try {
-				// Get memory information from node
-				Long freeMem = getFreeMemoryNode();
-				Long totalMem = getTotalMemoryNode();
-				if (freeMem != null && totalMem != null) {
-					// Calculate unused memory in %
-					double freeMemory = ((double)freeMem / (double)totalMem) * 100;
-					if (freeMemory < 10) {
-						log.info("Detected system has less than 10% free memory");
-						GCExternalProcesses(); // invoke gc on all java processes
-						sleep(10);
-					} else if (freeMemory < 20) {
-						log.info("Detected system has less than 20% free memory");
-						GCExternalProcesses(); // invoke gc on all java processes
-						sleep(30);
-					} else if (freeMemory < 40) {
-						log.info("Detected system has less than 40% free memory");
-						GCExternalProcesses(); // invoke gc on all java processes
-						sleep(60);
-					}
+				if (psi ? isUnderPressure() : isLowOnMemory()) {
+					_gc.collect(getBytesToReclaim()); // invoke gc on the java processes giving back most memory
+					sleep(GC_COOLDOWN);
 				}
-				sleep(5);
+				sleep(SAMPLE_INTERVAL);
 			} catch (Exception ex) {
 				log.error("Problem", ex);
 			}
@@ -68,126 +54,65 @@ class MemoryMonitor {
 		} catch (InterruptedException ie) {}	
 	}
 	
-	private static Long getTotalMemoryNode() {
-		Long memTotal = 0l;
-		try {
-			ProcessBuilder pb = new ProcessBuilder(Arrays.asList("cat", "/proc/meminfo"));
-			Process process = pb.start();
-			final InputStream is = process.getInputStream();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-            String line;
-            while ((line = reader.readLine()) != null) {
-            	if (line.startsWith("MemTotal:")) {
-            		String noStart = line.substring(line.indexOf("MemTotal:") + 9).trim();
-            		String noEnd = noStart.substring(0, noStart.indexOf(" ")).trim();
-            		memTotal = Long.valueOf(noEnd) * 1024; // convert to bytes 
-            	}
-            }
-            is.close();
-    		process.waitFor();
-        } catch (Exception ex) {
-        	log.error("Problem", ex);
-            return null;
-        }
-		return memTotal;
+	/**
+	 * True if processes stalled on memory (reclaim, swap-in, thrashing) for more than the thresholds during the last 10s
+	 */
+	static boolean isUnderPressure() {
+		if (!_pressure.read())
+			return false;
+		long some = _pressure.getHundredths(ProcReader.PSI_SOME, ProcReader.PSI_AVG10);
+		long full = _pressure.getHundredths(ProcReader.PSI_FULL, ProcReader.PSI_AVG10);
+		if (some < PSI_SOME_THRESHOLD && full < PSI_FULL_THRESHOLD)
+			return false;
+		log.info("Detected memory pressure, some avg10=" + (some / 100.0) + "% full avg10=" + (full / 100.0) + "%");
+		return true;
 	}
 	
-	private static Long getFreeMemoryNode() {
-		long memFree = 0, memCached = 0, memBuffer = 0;
-		try {
-			ProcessBuilder pb = new ProcessBuilder(Arrays.asList("cat", "/proc/meminfo"));
-			Process process = pb.start();
-			final InputStream is = process.getInputStream();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-            String line;
-            while ((line = reader.readLine()) != null) {
-            	if (line.startsWith("MemFree:")) {
-            		String noStart = line.substring(line.indexOf("MemFree:") + 8).trim();
-            		String noEnd = noStart.substring(0, noStart.indexOf(" ")).trim();
-            		memFree = Long.valueOf(noEnd);
-            	}
-            		
-            	if (line.startsWith("Buffers:")) {
-            		String noStart = line.substring(line.indexOf("Buffers:") + 8).trim();
-            		String noEnd = noStart.substring(0, noStart.indexOf(" ")).trim();
-            		memBuffer = Long.valueOf(noEnd);
-            	}
-            		
-            	if (line.startsWith("Cached:")) {
-            		String noStart = line.substring(line.indexOf("Cached:") + 7).trim();
-            		String noEnd = noStart.substring(0, noStart.indexOf(" ")).trim();
-            		memCached = Long.valueOf(noEnd);
-            	}
-            		
-            }
-            is.close();
-    		process.waitFor();
-        } catch (Exception ex) {
-        	log.error("Problem", ex);
-            return null;
-        }
-		
-		return (memFree + memCached + memBuffer) * 1024; // convert to bytes
+	/**
+	 * True if less than MIN_AVAILABLE_PERCENT of memory is available.
+	 * 	Kernels older than 3.14 have no MemAvailable, there free, buffers and cache are used
+	 */
+	static boolean isLowOnMemory() {
+		if (!_meminfo.read())
+			return false;
+		long total = getTotalMemoryNode();
+		long available = getAvailableMemoryNode();
+		if (total <= 0 || available < 0 || available * 100 >= total * MIN_AVAILABLE_PERCENT)
+			return false;
+		log.info("Detected system has less than " + MIN_AVAILABLE_PERCENT + "% available memory");
+		return true;
 	}
 	
-	
-	private static ArrayList<String>  getAllJavaProcesses() {
-		ArrayList<String> javaProcesses = new ArrayList<String>();
-		try {
-			ProcessBuilder pb = new ProcessBuilder(Arrays.asList("jps"));
-			Process process = pb.start();
-			final InputStream is = process.getInputStream();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-            String line;
-            while ((line = reader.readLine()) != null)
-            	javaProcesses.add(line.substring(0, line.indexOf(" ")).trim());
-            is.close();
-    		process.waitFor();
-        } catch (Exception ex) {
-        	log.error("Problem", ex);
-        }
-		return javaProcesses;
+	/**
+	 * Total memory of node in bytes, or -1 if unknown. Parsed from the last read of /proc/meminfo
+	 */
+	static long getTotalMemoryNode() {
+		long total = _meminfo.getLong(ProcReader.MEM_TOTAL);
+		return (total < 0) ? -1 : total * 1024;
 	}
 	
-	private static void GCExternalProcesses() {
-		for (String jvmPid : getAllJavaProcesses()) {
-			log.info("Requested process ( pid " + jvmPid + " ) to garbage collect");
-			GCExternalProcess(jvmPid);
+	/**
+	 * Memory available to processes in bytes, without swapping, or -1 if unknown. Parsed from the last read of /proc/meminfo
+	 */
+	static long getAvailableMemoryNode() {
+		long available = _meminfo.getLong(ProcReader.MEM_AVAILABLE);
+		if (available < 0) {
+			long free = _meminfo.getLong(ProcReader.MEM_FREE), buffers = _meminfo.getLong(ProcReader.BUFFERS), cached = _meminfo.getLong(ProcReader.CACHED);
+			available = (free < 0 || buffers < 0 || cached < 0) ? -1 : free + buffers + cached;
 		}
+		return (available < 0) ? -1 : available * 1024;
 	}
 	
-	private static void GCExternalProcess(String pid) {
-		System.out.println("Asked process with pid " + pid + " to do GC");
-		
-		/*VirtualMachine vm = null;
-		JMXConnector connector = null;
-
-		try {
-			// Attach to JVM process with pid
-			vm = VirtualMachine.attach(pid);
-
-			// Load management agent
-			vm.loadAgent(vm.getSystemProperties().getProperty("java.home") + "/lib/management-agent.jar");
-			
-			// Connect using JMX
-			JMXServiceURL url = new JMXServiceURL(vm.getAgentProperties().getProperty("com.sun.management.jmxremote.localConnectorAddress"));
-			connector = JMXConnectorFactory.newJMXConnector(url, null);
-			connector.connect();
-			
-			// Do GC
-			ManagementFactory.newPlatformMXBeanProxy(connector.getMBeanServerConnection(), ManagementFactory.MEMORY_MXBEAN_NAME, MemoryMXBean.class).gc();			
-		} catch (Exception ex) {
-			log.error("Problem", ex);
-		}
-
-		// Detach from JVM process
-		try {
-			if (connector != null)
-				connector.close();
-			if (vm != null)
-				vm.detach();
-		} catch (Exception ex) {
-			log.error("Problem", ex);
-		}*/
+	/**
+	 * Bytes to reclaim, to get back to TARGET_AVAILABLE_PERCENT of memory available (at least MIN_RECLAIM)
+	 */
+	static long getBytesToReclaim() {
+		if (!_meminfo.read())
+			return MIN_RECLAIM;
+		long total = getTotalMemoryNode();
+		long available = getAvailableMemoryNode();
+		if (total <= 0 || available < 0)
+			return MIN_RECLAIM;
+		return Math.max(MIN_RECLAIM, total / 100 * TARGET_AVAILABLE_PERCENT - available);
 	}
 }
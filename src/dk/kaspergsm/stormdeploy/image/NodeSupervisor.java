@@ -0,0 +1,218 @@
+package dk.kaspergsm.stormdeploy.image;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Supervises all daemons of a node from a single JVM, one ProcessMonitor per daemon.
+ * 	Daemons are started on request, so Deploy can start them in stages (ZK, then MASTER, then the rest).
+ * 	Only daemons listed in ~/daemons are started.
+ *
+ * 	Every sda.health.interval seconds all daemons are probed (ReadinessProbe), and a daemon failing
+ * 	sda.health.failures probes in a row is restarted. Daemons get sda.health.startup seconds to become ready.
+ *
+ * Listens on 127.0.0.1:PORT, one command per connection:
+ * 	start DAEMON	start supervising DAEMON (e.g. ZK, MASTER, WORKER), if not already supervised
+ * 	status		one line per supervised daemon: name, state, pid, restarts, uptime in seconds, readiness
+ *
+ * Can be executed by:
+ * java -cp storm-deploy-alternative.jar dk.kaspergsm.stormdeploy.image.NodeSupervisor
+ *
+ * @author Kasper Grud Skat Madsen
+ */
+public class NodeSupervisor {
+	private static Logger log = LoggerFactory.getLogger(NodeSupervisor.class);
+	public static final int PORT = 6698;
+	private static final String HOME = System.getProperty("user.home") + "/";
+	private static final int HEALTH_INTERVAL = Integer.getInteger("sda.health.interval", 30);
+	private static final int HEALTH_FAILURES = Integer.getInteger("sda.health.failures", 3);
+	private static final int HEALTH_STARTUP = Integer.getInteger("sda.health.startup", 300);
+	private final LinkedHashMap<String, ProcessMonitor> _monitors = new LinkedHashMap<String, ProcessMonitor>();
+	private final HashMap<String, String> _readiness = new HashMap<String, String>();
+	private final List<String> _nodeDaemons;
+
+	public NodeSupervisor(List<String> nodeDaemons) {
+		_nodeDaemons = nodeDaemons;
+	}
+
+	public static void main(String[] args) throws IOException {
+		ServerSocket server = new ServerSocket(PORT, 16, InetAddress.getByName("127.0.0.1"));
+		List<String> daemons = readDaemons();
+		log.info("Supervising daemons " + daemons + ", status on 127.0.0.1:" + PORT);
+		NodeSupervisor supervisor = new NodeSupervisor(daemons);
+		if (HEALTH_INTERVAL > 0)
+			supervisor.startHealthChecks();
+		supervisor.serve(server);
+	}
+
+	/**
+	 * Probe all supervised daemons from one thread, restarting daemons which stay unhealthy.
+	 * 	A daemon is only counted as failing once it has been ready, or HEALTH_STARTUP has passed
+	 */
+	private void startHealthChecks() {
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				HashMap<String, Integer> failures = new HashMap<String, Integer>();
+				HashSet<String> wasReady = new HashSet<String>();
+				try {
+					while (true) {
+						Thread.sleep(HEALTH_INTERVAL * 1000L);
+						for (Entry<String, ProcessMonitor> e : getMonitors().entrySet()) {
+							String daemon = e.getKey();
+							ProcessMonitor m = e.getValue();
+							ReadinessProbe probe = ReadinessProbe.forDaemon(daemon);
+							if (probe == null || (m.getState() != ProcessMonitor.State.RUNNING && m.getState() != ProcessMonitor.State.ADOPTED)) {
+								setReadiness(daemon, "-");
+								failures.remove(daemon);
+								wasReady.remove(daemon);
+								continue;
+							}
+							if (probe.isReady()) {
+								setReadiness(daemon, "READY");
+								failures.remove(daemon);
+								wasReady.add(daemon);
+								continue;
+							}
+							setReadiness(daemon, "NOT_READY");
+							if (!wasReady.contains(daemon) && m.getUptime() < HEALTH_STARTUP * 1000L)
+								continue;
+							int failed = failures.containsKey(daemon) ? failures.get(daemon) + 1 : 1;
+							failures.put(daemon, failed);
+							if (failed >= HEALTH_FAILURES) {
+								log.warn(daemon + " failed " + failed + " readiness probes in a row");
+								m.restart();
+								failures.remove(daemon);
+								wasReady.remove(daemon);
+							}
+						}
+					}
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, "health-check");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private synchronized LinkedHashMap<String, ProcessMonitor> getMonitors() {
+		return new LinkedHashMap<String, ProcessMonitor>(_monitors);
+	}
+
+	private synchronized void setReadiness(String daemon, String readiness) {
+		_readiness.put(daemon, readiness);
+	}
+
+	/**
+	 * Handle commands, until the socket is closed
+	 */
+	public void serve(ServerSocket server) {
+		while (!server.isClosed()) {
+			Socket client = null;
+			try {
+				client = server.accept();
+				client.setSoTimeout(5000);
+				BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+				PrintWriter out = new PrintWriter(client.getOutputStream(), true);
+				String command = in.readLine();
+				out.print(handle(command == null ? "" : command.trim()));
+				out.flush();
+			} catch (IOException ex) {
+				log.warn("Problem handling status request", ex);
+			} finally {
+				try {
+					if (client != null)
+						client.close();
+				} catch (IOException ex) {}
+			}
+		}
+	}
+
+	private synchronized String handle(String command) {
+		if (command.equals("status")) {
+			StringBuilder sb = new StringBuilder();
+			for (Entry<String, ProcessMonitor> e : _monitors.entrySet()) {
+				ProcessMonitor m = e.getValue();
+				sb.append(e.getKey()).append(" ").append(m.getState()).append(" ").append(m.getPid()).append(" ")
+					.append(m.getRestarts()).append(" ").append(m.getUptime() / 1000).append(" ")
+					.append(_readiness.containsKey(e.getKey()) ? _readiness.get(e.getKey()) : "-").append("\n");
+			}
+			return sb.toString();
+		}
+		if (command.startsWith("start ")) {
+			String daemon = command.substring(6).trim().toUpperCase();
+			if (_monitors.containsKey(daemon))
+				return "ok " + daemon + " already supervised\n";
+			if (!_nodeDaemons.contains(daemon))
+				return "error " + daemon + " is not a daemon of this node " + _nodeDaemons + "\n";
+			ProcessMonitor monitor = createMonitor(daemon);
+			if (monitor == null)
+				return "error unknown daemon " + daemon + "\n";
+			_monitors.put(daemon, monitor);
+			Thread t = new Thread(monitor, "monitor-" + daemon);
+			t.setDaemon(true);
+			t.start();
+			log.info("Supervising " + daemon);
+			return "ok " + daemon + " started\n";
+		}
+		return "error unknown command \"" + command + "\", expected start DAEMON or status\n";
+	}
+
+	/**
+	 * Monitor for daemon, or null if daemon is unknown.
+	 * 	Process names match both Storm 0.x (backtype.storm) and 1.x (org.apache.storm)
+	 */
+	private static ProcessMonitor createMonitor(String daemon) {
+		String storm = HOME + "storm/bin/storm";
+		if (daemon.equals("ZK"))
+			return new ProcessMonitor("org.apache.zookeeper.server", Arrays.asList(HOME + "zookeeper/bin/zkServer.sh", "start-foreground"));
+		if (daemon.equals("MASTER"))
+			return new ProcessMonitor("storm.daemon.nimbus", Arrays.asList(storm, "nimbus"));
+		if (daemon.equals("PACEMAKER"))
+			return new ProcessMonitor("org.apache.storm.pacemaker", Arrays.asList(storm, "pacemaker"));
+		if (daemon.equals("WORKER"))
+			return new ProcessMonitor("storm.daemon.supervisor", Arrays.asList(storm, "supervisor"));
+		if (daemon.equals("UI"))
+			return new ProcessMonitor("storm.ui.core", Arrays.asList(storm, "ui"));
+		if (daemon.equals("DRPC"))
+			return new ProcessMonitor("storm.daemon.drpc", Arrays.asList(storm, "drpc"));
+		if (daemon.equals("LOGVIEWER"))
+			return new ProcessMonitor("storm.daemon.logviewer", Arrays.asList(storm, "logviewer"));
+		return null;
+	}
+
+	/**
+	 * Daemons of node, from first line of ~/daemons (e.g. [ZK, WORKER, MASTER, UI])
+	 */
+	static List<String> readDaemons() throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(new File(HOME + "daemons")));
+		try {
+			String line = reader.readLine();
+			ArrayList<String> daemons = new ArrayList<String>();
+			if (line == null)
+				return daemons;
+			for (String daemon : line.replace("[", "").replace("]", "").split(","))
+				daemons.add(daemon.trim().toUpperCase());
+			return daemons;
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package dk.kaspergsm.stormdeploy.image;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads files in /proc into a reusable buffer, and parses values directly from the bytes.
+ * 	A file given to the constructor is kept open, and read again from the start (the kernel regenerates the content on every read).
+ * 	Reading and parsing creates no objects, so sampling every few seconds produces no garbage.
+ *
+ * @author Kasper Grud Skat Madsen
+ */
+final class ProcReader {
+	static final byte[] MEM_TOTAL = ascii("MemTotal:");
+	static final byte[] MEM_FREE = ascii("MemFree:");
+	static final byte[] MEM_AVAILABLE = ascii("MemAvailable:");
+	static final byte[] BUFFERS = ascii("Buffers:");
+	static final byte[] CACHED = ascii("Cached:");
+	static final byte[] VM_RSS = ascii("VmRSS:");
+	static final byte[] PSI_SOME = ascii("some ");
+	static final byte[] PSI_FULL = ascii("full ");
+	static final byte[] PSI_AVG10 = ascii("avg10=");
+	private final String _path;
+	private final byte[] _buffer;
+	private RandomAccessFile _file;
+	private int _length;
+
+	/**
+	 * Reader for a fixed file (e.g. /proc/meminfo)
+	 */
+	ProcReader(String path) {
+		_path = path;
+		_buffer = new byte[8192];
+	}
+
+	/**
+	 * Reader for files given to read(String), e.g. /proc/PID/status of changing processes
+	 */
+	ProcReader() {
+		this(null);
+	}
+
+	/**
+	 * Read the file given to the constructor. Returns false if it cannot be read (e.g. PSI is not supported by the kernel)
+	 */
+	boolean read() {
+		try {
+			if (_file == null)
+				_file = new RandomAccessFile(_path, "r");
+			_file.seek(0);
+			_length = fill(null);
+			return true;
+		} catch (IOException ex) {
+			close();
+			_length = 0;
+			return false;
+		}
+	}
+
+	/**
+	 * Read another file into the buffer. Returns false if it cannot be read (e.g. process has exited)
+	 */
+	boolean read(String path) {
+		InputStream in = null;
+		try {
+			in = new FileInputStream(path);
+			_length = fill(in);
+			return true;
+		} catch (IOException ex) {
+			_length = 0;
+			return false;
+		} finally {
+			try {
+				if (in != null)
+					in.close();
+			} catch (IOException ex) {}
+		}
+	}
+
+	/**
+	 * Fill buffer from stream, or from the open file if stream is null. Returns number of bytes read
+	 */
+	private int fill(InputStream in) throws IOException {
+		int length = 0, read;
+		while (length < _buffer.length && (read = (in == null) ? _file.read(_buffer, length, _buffer.length - length) : in.read(_buffer, length, _buffer.length - length)) > 0)
+			length += read;
+		return length;
+	}
+
+	/**
+	 * Number following key at the start of a line (e.g. "MemTotal:  2048 kB" gives 2048), or -1 if key is missing
+	 */
+	long getLong(byte[] key) {
+		int i = findLine(key, 0);
+		return (i < 0) ? -1 : parseLong(i + key.length);
+	}
+
+	/**
+	 * Decimal following field on the line starting with line, in hundredths
+	 * 	(e.g. line "some ", field "avg10=" of "some avg10=1.25 avg60=0.50" gives 125), or -1 if missing
+	 */
+	long getHundredths(byte[] line, byte[] field) {
+		int start = findLine(line, 0);
+		if (start < 0)
+			return -1;
+		for (int i = start; i < _length && _buffer[i] != '\n'; i++) {
+			if (matches(field, i))
+				return parseHundredths(i + field.length);
+		}
+		return -1;
+	}
+
+	void close() {
+		try {
+			if (_file != null)
+				_file.close();
+		} catch (IOException ex) {}
+		_file = null;
+	}
+
+	private int findLine(byte[] key, int from) {
+		for (int i = from; i < _length; ) {
+			if (matches(key, i))
+				return i;
+			while (i < _length && _buffer[i] != '\n')
+				i++;
+			i++;
+		}
+		return -1;
+	}
+
+	private boolean matches(byte[] key, int offset) {
+		if (offset + key.length > _length)
+			return false;
+		for (int j = 0; j < key.length; j++) {
+			if (_buffer[offset + j] != key[j])
+				return false;
+		}
+		return true;
+	}
+
+	private long parseLong(int i) {
+		while (i < _length && (_buffer[i] == ' ' || _buffer[i] == '\t'))
+			i++;
+		if (i >= _length || !isDigit(_buffer[i]))
+			return -1;
+		long value = 0;
+		for (; i < _length && isDigit(_buffer[i]); i++)
+			value = value * 10 + (_buffer[i] - '0');
+		return value;
+	}
+
+	private long parseHundredths(int i) {
+		long value = parseLong(i);
+		if (value < 0)
+			return -1;
+		while (i < _length && isDigit(_buffer[i]))
+			i++;
+		int digits = 0;
+		if (i < _length && _buffer[i] == '.') {
+			for (i++; i < _length && isDigit(_buffer[i]) && digits < 2; i++, digits++)
+				value = value * 10 + (_buffer[i] - '0');
+		}
+		for (; digits < 2; digits++)
+			value *= 10;
+		return value;
+	}
+
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+
+	private static byte[] ascii(String s) {
+		byte[] bytes = new byte[s.length()];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) s.charAt(i);
+		return bytes;
+	}
+}
@@ -1,26 +1,62 @@
 package dk.kaspergsm.stormdeploy.image;
 
-import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Is used to monitor a process, and restart as necessary.
- * 
+ * 	The daemon is started as child of the monitor, which blocks until it exits (no polling while the daemon runs).
+ * 	The pid of the daemon is kept in a pidfile, so a restarted monitor adopts a running daemon instead of starting another.
+ * 	Restarts back off exponentially, and a daemon exiting CRASH_LOOP_EXITS times within CRASH_LOOP_WINDOW is paused.
+ *
  * Can be executed by:
- * java -cp storm-deploy-alternative.jar dk.kaspergsm.stormdeploy.image.ProcessMonitor 
- * 
+ * java -cp storm-deploy-alternative.jar dk.kaspergsm.stormdeploy.image.ProcessMonitor process executable [arguments]
+ *
  * @author Kasper Grud Skat Madsen
  */
-public class ProcessMonitor {
-	private static long _daemonStartTime = 300000; // 5 minutes in milliseconds
-	private static long _startDaemonTs;
-	private static String[] _toExec;
-	private static String _process;
-	private static Timer t;
-	
+public class ProcessMonitor implements Runnable {
+	private static Logger log = LoggerFactory.getLogger(ProcessMonitor.class);
+	public static final String RUN_DIR = System.getProperty("user.home") + "/sda/run/";
+	private static final long MIN_BACKOFF = 1000;
+	private static final long MAX_BACKOFF = 60000;
+	private static final long STABLE_RUNTIME = 600000;		// backoff is reset, when daemon ran for 10 minutes
+	private static final int CRASH_LOOP_EXITS = 5;
+	private static final long CRASH_LOOP_WINDOW = 300000;
+	private static final long CRASH_LOOP_PAUSE = 600000;
+	private static final long ADOPTED_POLL_INTERVAL = 5000;	// adopted daemons are not children, so their exit cannot be awaited
+
+	public enum State {STARTING, RUNNING, ADOPTED, BACKOFF, CRASH_LOOP}
+
+	private final String _process;
+	private final List<String> _toExec;
+	private final File _pidFile, _outFile;
+	private final LinkedList<Long> _recentExits = new LinkedList<Long>();
+	private volatile State _state = State.STARTING;
+	private volatile int _pid = -1;
+	private volatile int _restarts = 0;
+	private volatile long _startedTs;
+	private volatile Process _child;
+
+	/**
+	 * @param process
+	 *            Text identifying the daemon in its command line (e.g. backtype.storm.daemon.nimbus)
+	 * @param toExec
+	 *            Executable and arguments starting the daemon in the foreground
+	 */
+	public ProcessMonitor(String process, List<String> toExec) {
+		_process = process;
+		_toExec = toExec;
+		_pidFile = new File(RUN_DIR + process + ".pid");
+		_outFile = new File(RUN_DIR + process + ".out");
+	}
+
 	public static void main(String[] args) {
 		// Expected args
 		// 1. Process id to check
@@ -29,47 +65,206 @@ public class ProcessMonitor {
 			System.err.println("Wrong number of arguments given. Please provide process id and executable string");
 			return;
 		}
-		
+
 		// Parse
-		_process = args[0].replaceAll("\"", "");
-		_toExec = new String[args.length - 1];
+		ArrayList<String> toExec = new ArrayList<String>();
 		for (int i = 1; i < args.length; i++)
-			_toExec[i-1] = args[i].replaceAll("\"", "");
-
-		// Schedule work
-		t = new Timer();
-		t.scheduleAtFixedRate(new TimerTask() {
-			@Override
-			public void run() {
-				try {
-					if (!isRunning()) {
-						Runtime.getRuntime().exec(_toExec);
-						_startDaemonTs = System.currentTimeMillis();
-					}
-				} catch (Exception ex) {
-					System.err.println(ex.toString());
+			toExec.add(args[i].replaceAll("\"", ""));
+		new ProcessMonitor(args[0].replaceAll("\"", ""), toExec).run();
+	}
+
+	/**
+	 * Supervise daemon until interrupted. The daemon is left running when the monitor stops, to be adopted by the next monitor
+	 */
+	@Override
+	public void run() {
+		new File(RUN_DIR).mkdirs();
+		try {
+			adopt();
+			long backoff = MIN_BACKOFF;
+			while (!Thread.currentThread().isInterrupted()) {
+				int exitCode = startAndWait();
+				long runtime = System.currentTimeMillis() - _startedTs;
+				log.warn(_process + " (pid " + _pid + ") exited with code " + exitCode + " after " + (runtime / 1000) + "s");
+				_pid = -1;
+
+				if (runtime >= STABLE_RUNTIME)
+					backoff = MIN_BACKOFF;
+				if (isCrashLoop()) {
+					log.error(_process + " exited " + CRASH_LOOP_EXITS + " times within " + (CRASH_LOOP_WINDOW / 1000) + "s, pausing restarts for " + (CRASH_LOOP_PAUSE / 1000) + "s. See " + _outFile);
+					_state = State.CRASH_LOOP;
+					Thread.sleep(CRASH_LOOP_PAUSE);
+					_recentExits.clear();
+					backoff = MIN_BACKOFF;
+				} else {
+					_state = State.BACKOFF;
+					Thread.sleep(backoff);
+					backoff = Math.min(MAX_BACKOFF, backoff * 2);
 				}
+				_restarts++;
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Wait for the daemon of a previous monitor to exit, if it is still running
+	 */
+	private void adopt() throws InterruptedException {
+		int pid = readPidFile();
+		if (pid <= 0 || !isAlive(pid))
+			return;
+		log.info("Adopted running " + _process + " (pid " + pid + ")");
+		_pid = pid;
+		_state = State.ADOPTED;
+		_startedTs = System.currentTimeMillis();
+		while (isAlive(pid))
+			Thread.sleep(ADOPTED_POLL_INTERVAL);
+		log.warn(_process + " (pid " + pid + ") exited");
+		_recentExits.add(System.currentTimeMillis());
+		_pid = -1;
+	}
+
+	/**
+	 * Start daemon as child, and block until it exits. Returns exit code, or -1 if it could not be started
+	 * 	The shell writes its pid before exec, so the pidfile holds the pid of the daemon itself
+	 */
+	private int startAndWait() throws InterruptedException {
+		ArrayList<String> cmd = new ArrayList<String>(Arrays.asList("sh", "-c", "echo $$ > \"$0\"; out=\"$1\"; shift; exec \"$@\" >> \"$out\" 2>&1", _pidFile.getPath(), _outFile.getPath()));
+		cmd.addAll(_toExec);
+		_state = State.STARTING;
+		_startedTs = System.currentTimeMillis();
+		try {
+			_pidFile.delete();
+			_child = new ProcessBuilder(cmd).start();
+			_child.getOutputStream().close();
+			_child.getInputStream().close();
+			_child.getErrorStream().close();
+			_pid = waitForPid();
+			_state = State.RUNNING;
+			log.info("Started " + _process + " (pid " + _pid + ")");
+			return _child.waitFor();
+		} catch (IOException ex) {
+			log.error("Could not start " + _process, ex);
+			return -1;
+		} finally {
+			_recentExits.add(System.currentTimeMillis());
+			_child = null;
+		}
+	}
+
+	/**
+	 * Stop the daemon (SIGTERM, then SIGKILL after 30s), so it is restarted. Used when the daemon is running, but unhealthy
+	 */
+	public void restart() throws InterruptedException {
+		int pid = _pid;
+		if (pid <= 0 || !exists(pid)) {
+			log.warn("Cannot restart " + _process + ", it is not running");
+			return;
+		}
+		log.warn("Restarting " + _process + " (pid " + pid + ")");
+		signal(pid, "TERM");
+		for (int i = 0; i < 30 && exists(pid); i++)
+			Thread.sleep(1000);
+		if (exists(pid))
+			signal(pid, "KILL");
+	}
+
+	private static void signal(int pid, String signal) throws InterruptedException {
+		try {
+			new ProcessBuilder("kill", "-" + signal, String.valueOf(pid)).start().waitFor();
+		} catch (IOException ex) {
+			log.error("Could not send " + signal + " to " + pid, ex);
+		}
+	}
+
+	/**
+	 * Pid written by the shell starting the daemon. The shell execs the daemon, so the pid is the daemon's from the start,
+	 * 	even while launcher scripts (zkServer.sh, bin/storm) still run before the JVM is started.
+	 * 	Returns -1 if the child exits without writing it
+	 */
+	private int waitForPid() throws InterruptedException {
+		while (true) {
+			int pid = readPidFile();
+			if (pid > 0 && exists(pid))
+				return pid;
+			try {
+				_child.exitValue();
+				return -1;
+			} catch (IllegalThreadStateException ex) {
+				Thread.sleep(100);
 			}
-		}, 1000, 5000);
-	}
-	
-	private static boolean isRunning() throws IOException {
-		Runtime rt = Runtime.getRuntime();
-		Process p = rt.exec(new String[]{"ps","aux"});
-        BufferedReader i = new BufferedReader(new InputStreamReader(p.getInputStream()));
-        
-        // read the output from the command
-        String s = null;
-        while ((s = i.readLine()) != null) {
-        	if (s.contains(_process) && !s.contains("storm-deploy-alternative.jar")) // filter the monitoring process
-        		return true;
-        }
-        
-        // Only if more than _initialStartup has passed, return false
-        // It is imperative the daemons gets enough time to start!
-        long passedTimeSinceDaemonLaunch = System.currentTimeMillis() - _startDaemonTs;
-        if (passedTimeSinceDaemonLaunch >= _daemonStartTime)
-        	return false;
-        return true;
-	}
-}
\ No newline at end of file
+		}
+	}
+
+	private boolean isCrashLoop() {
+		long now = System.currentTimeMillis();
+		while (!_recentExits.isEmpty() && now - _recentExits.getFirst() > CRASH_LOOP_WINDOW)
+			_recentExits.removeFirst();
+		return _recentExits.size() >= CRASH_LOOP_EXITS;
+	}
+
+	private static boolean exists(int pid) {
+		return new File("/proc/" + pid).exists();
+	}
+
+	/**
+	 * Process is alive, and still runs the daemon (pids are reused, and monitors also mention the daemon)
+	 */
+	private boolean isAlive(int pid) {
+		String cmdline = readFile(new File("/proc/" + pid + "/cmdline"));
+		return cmdline != null && cmdline.contains(_process) && !cmdline.contains("storm-deploy-alternative.jar");
+	}
+
+	private int readPidFile() {
+		String pid = readFile(_pidFile);
+		try {
+			return (pid == null) ? -1 : Integer.parseInt(pid.trim());
+		} catch (NumberFormatException ex) {
+			return -1;
+		}
+	}
+
+	private static String readFile(File f) {
+		FileInputStream in = null;
+		try {
+			in = new FileInputStream(f);
+			byte[] buffer = new byte[4096];
+			int read, length = 0;
+			while (length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) > 0)
+				length += read;
+			return new String(buffer, 0, length, "UTF-8").replace('\0', ' ');
+		} catch (IOException ex) {
+			return null;
+		} finally {
+			try {
+				if (in != null)
+					in.close();
+			} catch (IOException ex) {}
+		}
+	}
+
+	public String getProcess() {
+		return _process;
+	}
+
+	public State getState() {
+		return _state;
+	}
+
+	public int getPid() {
+		return _pid;
+	}
+
+	public int getRestarts() {
+		return _restarts;
+	}
+
+	/**
+	 * Milliseconds since the daemon was started or adopted
+	 */
+	public long getUptime() {
+		return (_state == State.RUNNING || _state == State.ADOPTED) ? System.currentTimeMillis() - _startedTs : 0;
+	}
+}
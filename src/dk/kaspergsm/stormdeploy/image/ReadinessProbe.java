@@ -0,0 +1,193 @@
+package dk.kaspergsm.stormdeploy.image;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks a daemon answers on its protocol, not just that its process exists.
+ * 	Probes use non-blocking NIO with a deadline, so a hung daemon cannot block the caller.
+ * 	ZK must answer ruok and be serving (in quorum), Nimbus and DRPC must answer a Thrift call, UI and Logviewer an HTTP request (with any status).
+ *
+ * Can be executed by (exits with 0 when all daemons of the node are ready, 1 on timeout):
+ * java -cp storm-deploy-alternative.jar dk.kaspergsm.stormdeploy.image.ReadinessProbe timeoutSeconds DAEMON [DAEMON ...]
+ *
+ * @author Kasper Grud Skat Madsen
+ */
+public abstract class ReadinessProbe {
+	private static Logger log = LoggerFactory.getLogger(ReadinessProbe.class);
+	private static final int PROBE_TIMEOUT = 5000;
+	private static final int MAX_RESPONSE = 16384;
+	private static final String HOST = "127.0.0.1";
+
+	/**
+	 * True if daemon is ready. Must not throw
+	 */
+	public abstract boolean isReady();
+
+	/**
+	 * Probe for daemon running on this node, or null if daemon has no port (WORKER)
+	 */
+	public static ReadinessProbe forDaemon(String daemon) {
+		if (daemon.equals("ZK"))
+			return zookeeper(2181);
+		if (daemon.equals("MASTER"))
+			return thrift(6627);
+		if (daemon.equals("DRPC"))
+			return thrift(3772);
+		if (daemon.equals("PACEMAKER"))
+			return tcp(6699);
+		if (daemon.equals("UI"))
+			return http(8080);
+		if (daemon.equals("LOGVIEWER"))
+			return http(8000);
+		return null;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Wrong number of arguments given. Please provide timeout in seconds and daemons");
+			System.exit(2);
+		}
+		long deadline = System.currentTimeMillis() + Long.parseLong(args[0]) * 1000;
+		List<String> nodeDaemons = NodeSupervisor.readDaemons();
+		for (int i = 1; i < args.length; i++) {
+			String daemon = args[i].toUpperCase();
+			ReadinessProbe probe = forDaemon(daemon);
+			if (!nodeDaemons.contains(daemon) || probe == null)
+				continue;
+			while (!probe.isReady()) {
+				if (System.currentTimeMillis() > deadline) {
+					log.error(daemon + " not ready within " + args[0] + "s");
+					System.exit(1);
+				}
+				Thread.sleep(2000);
+			}
+			log.info(daemon + " ready");
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * ruok only tells the server is running. mntr reports zk_server_state once the node is serving requests (standalone or in quorum)
+	 */
+	public static ReadinessProbe zookeeper(final int port) {
+		return new ReadinessProbe() {
+			@Override
+			public boolean isReady() {
+				return exchange(port, "ruok", 4).startsWith("imok") && exchange(port, "mntr", MAX_RESPONSE).contains("zk_server_state");
+			}
+		};
+	}
+
+	/**
+	 * Calls an unknown method. A responsive Thrift server answers with an exception (Nimbus and DRPC use framed transport)
+	 */
+	public static ReadinessProbe thrift(final int port) {
+		final byte[] name = "sdaReadinessProbe".getBytes();
+		final ByteBuffer request = ByteBuffer.allocate(4 + 4 + 4 + name.length + 4 + 1);
+		request.putInt(request.capacity() - 4);		// frame size
+		request.putInt(0x80010001);					// binary protocol version 1, message type CALL
+		request.putInt(name.length).put(name);
+		request.putInt(0);							// sequence id
+		request.put((byte) 0);						// empty arguments struct
+		return new ReadinessProbe() {
+			@Override
+			public boolean isReady() {
+				byte[] reply = exchangeBytes(port, request.array(), 8);
+				return reply.length >= 8 && reply[4] == (byte) 0x80 && reply[5] == 1 && (reply[7] == 2 || reply[7] == 3);	// REPLY or EXCEPTION
+			}
+		};
+	}
+
+	/**
+	 * Any well-formed status line means the server handles requests (the logviewer answers 404 for /)
+	 */
+	public static ReadinessProbe http(final int port) {
+		return new ReadinessProbe() {
+			@Override
+			public boolean isReady() {
+				String status = exchange(port, "GET / HTTP/1.0\r\n\r\n", 12);
+				return status.length() >= 12 && status.substring(0, 12).matches("HTTP/1\\.[01] \\d\\d\\d");
+			}
+		};
+	}
+
+	public static ReadinessProbe tcp(final int port) {
+		return new ReadinessProbe() {
+			@Override
+			public boolean isReady() {
+				try {
+					exchange(port, ByteBuffer.allocate(0), 0);
+					return true;
+				} catch (IOException ex) {
+					return false;
+				}
+			}
+		};
+	}
+
+	private static String exchange(int port, String request, int minResponse) {
+		try {
+			return new String(exchangeBytes(port, request.getBytes("US-ASCII"), minResponse), "US-ASCII");
+		} catch (IOException ex) {
+			return "";
+		}
+	}
+
+	private static byte[] exchangeBytes(int port, byte[] request, int minResponse) {
+		try {
+			ByteBuffer response = exchange(port, ByteBuffer.wrap(request), minResponse);
+			byte[] bytes = new byte[response.position()];
+			response.flip();
+			response.get(bytes);
+			return bytes;
+		} catch (IOException ex) {
+			return new byte[0];
+		}
+	}
+
+	/**
+	 * Connect, write request and read until minResponse bytes are received or the server closes the connection.
+	 * 	Throws IOException if the connection fails or PROBE_TIMEOUT passes
+	 */
+	private static ByteBuffer exchange(int port, ByteBuffer request, int minResponse) throws IOException {
+		long deadline = System.currentTimeMillis() + PROBE_TIMEOUT;
+		ByteBuffer response = ByteBuffer.allocate(Math.max(minResponse, MAX_RESPONSE));
+		Selector selector = Selector.open();
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.configureBlocking(false);
+			channel.connect(new InetSocketAddress(HOST, port));
+			SelectionKey key = channel.register(selector, SelectionKey.OP_CONNECT);
+			while (true) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
+					throw new IOException("Timeout probing port " + port);
+				selector.select(remaining);
+				if (key.isValid() && key.isConnectable() && channel.finishConnect()) {
+					if (minResponse == 0 && !request.hasRemaining())
+						return response;
+					key.interestOps(request.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+				} else if (key.isValid() && key.isWritable()) {
+					channel.write(request);
+					if (!request.hasRemaining())
+						key.interestOps(SelectionKey.OP_READ);
+				} else if (key.isValid() && key.isReadable()) {
+					if (channel.read(response) < 0 || response.position() >= minResponse || !response.hasRemaining())
+						return response;
+				}
+				selector.selectedKeys().clear();
+			}
+		} finally {
+			channel.close();
+			selector.close();
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package dk.kaspergsm.stormdeploy.image;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Garbage collects the JVMs on the node, which are expected to give back most memory.
+ * 	JVMs are found from their hsperfdata files, attached using the Attach API and inspected using JMX.
+ * 	They are ranked by reclaimable heap (committed heap minus heap in use after the last collection), then by RSS.
+ * 	Only as many JVMs as needed to reclaim the requested memory are collected, and each JVM at most once per MIN_GC_INTERVAL.
+ *
+ * The Attach API is in tools.jar up to Java 8 (and the jdk.attach module after), so it is loaded by reflection.
+ *
+ * @author Kasper Grud Skat Madsen
+ */
+class TargetedGC {
+	private static Logger log = LoggerFactory.getLogger(TargetedGC.class);
+	private static final String LOCAL_CONNECTOR = "com.sun.management.jmxremote.localConnectorAddress";
+	private static final long MIN_GC_INTERVAL = 300000;			// a JVM is collected at most every 5 minutes
+	private static final long MIN_RECLAIMABLE = 16 * 1024 * 1024;	// not worth a full GC below this
+	private static final long MB = 1024 * 1024;
+	private final HashMap<Integer, Jvm> _jvms = new HashMap<Integer, Jvm>();
+	private final ProcReader _status = new ProcReader();
+	private final int _self = getSelfPid();
+	private boolean _attachAvailable = true;
+
+	/**
+	 * A JVM on the node, with its JMX connection kept open between rounds
+	 */
+	private static class Jvm {
+		final int pid;
+		JMXConnector connector;
+		MBeanServerConnection mbeans;
+		long lastGc, committed, live, rss;
+
+		Jvm(int pid) {
+			this.pid = pid;
+		}
+
+		long getReclaimable() {
+			return Math.max(0, committed - live);
+		}
+	}
+
+	/**
+	 * Collect JVMs, until an estimated bytes of memory are reclaimed (or no more JVMs are worth collecting)
+	 */
+	void collect(long bytes) {
+		if (!_attachAvailable)
+			return;
+
+		List<Jvm> candidates = inspect();
+		Collections.sort(candidates, new Comparator<Jvm>() {
+			@Override
+			public int compare(Jvm j1, Jvm j2) {
+				if (j1.getReclaimable() != j2.getReclaimable())
+					return (j1.getReclaimable() > j2.getReclaimable()) ? -1 : 1;
+				return (j1.rss > j2.rss) ? -1 : (j1.rss < j2.rss ? 1 : 0);
+			}
+		});
+
+		long now = System.currentTimeMillis(), expected = 0, reclaimed = 0;
+		int collected = 0;
+		for (Jvm jvm : candidates) {
+			if (expected >= bytes)
+				break;
+			if (jvm.getReclaimable() < MIN_RECLAIMABLE)
+				break;	// ranked, so no remaining JVM is worth collecting
+			if (now - jvm.lastGc < MIN_GC_INTERVAL) {
+				log.debug("Skipping pid " + jvm.pid + ", collected " + ((now - jvm.lastGc) / 1000) + "s ago");
+				continue;
+			}
+			expected += jvm.getReclaimable();
+			reclaimed += gc(jvm);
+			collected++;
+		}
+		log.info("Collected " + collected + " of " + candidates.size() + " JVM(s), reclaimed " + (reclaimed / MB) + "MB RSS of " + (bytes / MB) + "MB requested");
+	}
+
+	/**
+	 * Full GC of jvm (same as jcmd GC.run). Returns bytes of RSS given back to the OS
+	 */
+	private long gc(Jvm jvm) {
+		long heapBefore = jvm.committed, rssBefore = jvm.rss;
+		try {
+			jvm.lastGc = System.currentTimeMillis();
+			jvm.mbeans.invoke(new ObjectName("java.lang:type=Memory"), "gc", null, null);
+			readHeap(jvm);
+			jvm.rss = readRss(jvm.pid);
+			long reclaimed = Math.max(0, rssBefore - jvm.rss);
+			log.info("GC of pid " + jvm.pid + " took " + (System.currentTimeMillis() - jvm.lastGc) + "ms, heap committed " + (heapBefore / MB) + "MB -> " + (jvm.committed / MB)
+					+ "MB, RSS " + (rssBefore / MB) + "MB -> " + (jvm.rss / MB) + "MB, reclaimed " + (reclaimed / MB) + "MB");
+			return reclaimed;
+		} catch (Exception ex) {
+			log.warn("Could not GC pid " + jvm.pid, ex);
+			close(jvm);
+			return 0;
+		}
+	}
+
+	/**
+	 * Attach to new JVMs, forget exited JVMs, and read heap and RSS of all JVMs
+	 */
+	private List<Jvm> inspect() {
+		Set<Integer> pids = listJvms();
+		for (Iterator<Entry<Integer, Jvm>> it = _jvms.entrySet().iterator(); it.hasNext(); ) {
+			Entry<Integer, Jvm> e = it.next();
+			if (!pids.contains(e.getKey())) {
+				close(e.getValue());
+				it.remove();
+			}
+		}
+
+		ArrayList<Jvm> inspected = new ArrayList<Jvm>();
+		for (int pid : pids) {
+			Jvm jvm = _jvms.get(pid);
+			if (jvm == null) {
+				jvm = new Jvm(pid);
+				_jvms.put(pid, jvm);
+			}
+			try {
+				if (jvm.mbeans == null)
+					connect(jvm);
+				readHeap(jvm);
+				jvm.rss = readRss(pid);
+				inspected.add(jvm);
+			} catch (ClassNotFoundException ex) {
+				log.error("Attach API not found, add tools.jar of the JDK to the classpath. Disabling GC of other JVMs");
+				_attachAvailable = false;
+				return inspected;
+			} catch (Exception ex) {
+				log.debug("Could not inspect pid " + pid, ex);
+				close(jvm);
+			}
+		}
+		return inspected;
+	}
+
+	/**
+	 * Heap committed, and heap in use after the last collection (live data), summed over all heap pools
+	 */
+	private static void readHeap(Jvm jvm) throws Exception {
+		long committed = 0, live = 0;
+		for (ObjectName pool : jvm.mbeans.queryNames(new ObjectName("java.lang:type=MemoryPool,*"), null)) {
+			if (!"HEAP".equals(String.valueOf(jvm.mbeans.getAttribute(pool, "Type"))))
+				continue;
+			CompositeData usage = (CompositeData) jvm.mbeans.getAttribute(pool, "Usage");
+			CompositeData afterGc = (CompositeData) jvm.mbeans.getAttribute(pool, "CollectionUsage");
+			committed += (Long) usage.get("committed");
+			live += (Long) ((afterGc != null) ? afterGc : usage).get("used");
+		}
+		jvm.committed = committed;
+		jvm.live = live;
+	}
+
+	/**
+	 * Attach to JVM, start its local management agent (if not running) and connect using JMX
+	 */
+	private static void connect(Jvm jvm) throws Exception {
+		Class<?> vmClass = Class.forName("com.sun.tools.attach.VirtualMachine");
+		Object vm = vmClass.getMethod("attach", String.class).invoke(null, String.valueOf(jvm.pid));
+		try {
+			String address = ((Properties) vmClass.getMethod("getAgentProperties").invoke(vm)).getProperty(LOCAL_CONNECTOR);
+			if (address == null) {
+				try {
+					// Java 8 and newer
+					address = (String) vmClass.getMethod("startLocalManagementAgent").invoke(vm);
+				} catch (NoSuchMethodException ex) {
+					String javaHome = ((Properties) vmClass.getMethod("getSystemProperties").invoke(vm)).getProperty("java.home");
+					vmClass.getMethod("loadAgent", String.class).invoke(vm, javaHome + File.separator + "lib" + File.separator + "management-agent.jar");
+					address = ((Properties) vmClass.getMethod("getAgentProperties").invoke(vm)).getProperty(LOCAL_CONNECTOR);
+				}
+			}
+			jvm.connector = JMXConnectorFactory.connect(new JMXServiceURL(address));
+			jvm.mbeans = jvm.connector.getMBeanServerConnection();
+		} catch (InvocationTargetException ex) {
+			throw (ex.getCause() instanceof Exception) ? (Exception) ex.getCause() : ex;
+		} finally {
+			Method detach = vmClass.getMethod("detach");
+			detach.invoke(vm);
+		}
+	}
+
+	private static void close(Jvm jvm) {
+		try {
+			if (jvm.connector != null)
+				jvm.connector.close();
+		} catch (Exception ex) {}
+		jvm.connector = null;
+		jvm.mbeans = null;
+	}
+
+	private long readRss(int pid) {
+		if (!_status.read("/proc/" + pid + "/status"))
+			return 0;
+		return Math.max(0, _status.getLong(ProcReader.VM_RSS)) * 1024;
+	}
+
+	/**
+	 * Pids of running JVMs of this user, from their hsperfdata files (as jps does), except this JVM
+	 */
+	private Set<Integer> listJvms() {
+		HashSet<Integer> pids = new HashSet<Integer>();
+		String[] files = new File(System.getProperty("java.io.tmpdir"), "hsperfdata_" + System.getProperty("user.name")).list();
+		if (files == null)
+			return pids;
+		for (String file : files) {
+			try {
+				int pid = Integer.parseInt(file);
+				if (pid != _self && new File("/proc/" + pid).exists())
+					pids.add(pid);
+			} catch (NumberFormatException ex) {}
+		}
+		return pids;
+	}
+
+	private static int getSelfPid() {
+		try {
+			return Integer.parseInt(new File("/proc/self").getCanonicalFile().getName());
+		} catch (Exception ex) {
+			return -1;
+		}
+	}
+}
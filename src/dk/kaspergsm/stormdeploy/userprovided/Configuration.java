@@ -4,11 +4,17 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Map.Entry;
+import java.util.List;
+import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import dk.kaspergsm.stormdeploy.Tools;
+import dk.kaspergsm.stormdeploy.configurations.DefaultSchedulerMetaGenerator;
+import dk.kaspergsm.stormdeploy.configurations.KernelTuning;
+import dk.kaspergsm.stormdeploy.configurations.Scheduler;
+import dk.kaspergsm.stormdeploy.configurations.SchedulerMetaGenerator;
 import dk.kaspergsm.stormdeploy.configurations.SystemTools.PACKAGE_MANAGER;
 
 /**
@@ -18,25 +24,72 @@ import dk.kaspergsm.stormdeploy.configurations.SystemTools.PACKAGE_MANAGER;
  */
 public class Configuration {
 	private static Logger log = LoggerFactory.getLogger(Configuration.class);
-	HashMap<Integer, String> _nodeIdToInstanceTypeID = null;
-	private String _imageID = null, _locationID = null;
-	private ArrayList<String> _conf;
-	
-	private HashSet<String> _allConfigurationSettings = new HashSet<String>(Arrays.asList(
+	private static final int MAX_EBS_VOLUMES = 10;
+	private static final HashSet<String> _allDaemons = new HashSet<String>(Arrays.asList("ZK", "WORKER", "MASTER", "UI", "DRPC", "PACEMAKER"));
+	private static final HashSet<String> _allConfigurationSettings = new HashSet<String>(Arrays.asList(
 			"storm-version", 
 			"zk-version",
 			"scheduler-webdownload-path",
+			"scheduler-class",
+			"scheduler-meta-generator",
 			"image","image-username",
 			"packagemanager",
 			"region",
 			"placementgroup",
 			"mount-local-storage",
 			"mount-ebs-storage-size",
+			"ebs-volumes",
+			"ebs-volume-type",
+			"ebs-iops",
+			"zk-profile",
+			"kernel-profile",
 			"private-key-path",
 			"public-key-path",
 			"memory-monitor",
+			"streaming-configuration",
+			"max-concurrent-scripts",
+			"scheduler-meta-inline",
+			"artifact-cache",
+			"artifact-mirror",
+			"artifact-fanout",
+			"health-check-interval",
+			"health-check-failures",
+			"readiness-timeout",
 			"remote-exec-preconfig",
 			"remote-exec-postconfig"));
+	private static final HashSet<String> _booleanSettings = new HashSet<String>(Arrays.asList(
+			"mount-local-storage",
+			"memory-monitor",
+			"streaming-configuration",
+			"scheduler-meta-inline",
+			"artifact-cache"));
+	private static final HashSet<String> _tuningSettings = new HashSet<String>(Arrays.asList(
+			"slots",
+			"worker-heap-mb",
+			"netty-threads",
+			"netty-buffer-mb"));
+	private static final HashSet<String> _integerSettings = new HashSet<String>(Arrays.asList(
+			"mount-ebs-storage-size",
+			"ebs-volumes",
+			"ebs-iops",
+			"max-concurrent-scripts",
+			"artifact-fanout",
+			"health-check-interval",
+			"health-check-failures",
+			"readiness-timeout"));
+	
+	/**
+	 * Everything is parsed once, when the configuration is created. Getters only perform lookups
+	 */
+	private final HashMap<String, String> _settings = new HashMap<String, String>();
+	private final ArrayList<String> _remoteExecPreConfig = new ArrayList<String>();
+	private final ArrayList<String> _remoteExecPostConfig = new ArrayList<String>();
+	private final ArrayList<NodeDefinition> _nodes = new ArrayList<NodeDefinition>();
+	private final HashMap<Integer, String> _nodeIdToInstanceType = new HashMap<Integer, String>();
+	private final HashMap<Integer, Integer> _nodeIdToZkId = new HashMap<Integer, Integer>();
+	private final HashMap<List<String>, List<Integer>> _daemonsToNodeIds = new HashMap<List<String>, List<Integer>>();
+	private final ArrayList<String> _errors = new ArrayList<String>();
+	private final boolean _found;
 	
 	public static Configuration fromYamlFile(File f, String clustername) {
 		return new Configuration(Tools.readYamlConf(f), clustername);
@@ -44,7 +97,170 @@ public class Configuration {
 	
 	@SuppressWarnings("unchecked")
 	public Configuration(HashMap<String, Object> conf, String clustername) {
-		_conf = (ArrayList<String>) conf.get(clustername);
+		ArrayList<Object> lines = (conf != null) ? (ArrayList<Object>) conf.get(clustername) : null;
+		_found = (lines != null);
+		if (lines != null) {
+			for (Object line : lines)
+				parseLine(String.valueOf(line).trim());
+		}
+		validate();
+	}
+	
+	private void parseLine(String line) {
+		int separator = line.indexOf(" ");
+		if (separator <= 0) {
+			_errors.add("Malformed line \"" + line + "\", expected KEY VALUE or INSTANCETYPE {DAEMONS}");
+			return;
+		}
+		String key = line.substring(0, separator);
+		String value = line.substring(separator).trim();
+		
+		// Remote exec (list of commands)
+		if (key.equals("remote-exec-preconfig") || key.equals("remote-exec-postconfig")) {
+			List<String> commands = parseList(line, value);
+			if (commands != null)
+				(key.equals("remote-exec-preconfig") ? _remoteExecPreConfig : _remoteExecPostConfig).addAll(commands);
+			return;
+		}
+		
+		// Setting
+		if (_allConfigurationSettings.contains(key)) {
+			value = value.replaceAll("\"", "").trim();
+			if (_settings.containsKey(key))
+				_errors.add("Setting " + key + " is defined more than once");
+			else if (_booleanSettings.contains(key) && !value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false"))
+				_errors.add("Setting " + key + " must be true or false, was \"" + value + "\"");
+			else if (_integerSettings.contains(key) && !isInteger(value))
+				_errors.add("Setting " + key + " must be an integer, was \"" + value + "\"");
+			_settings.put(key, value);
+			return;
+		}
+		
+		// Node (instanceType {daemons} [tuning])
+		List<String> daemons = parseList(line, value);
+		if (daemons == null)
+			return;
+		HashMap<String, Integer> tuning = parseTuning(line, value.substring(value.lastIndexOf("}") + 1).trim());
+		if (daemons.isEmpty()) {
+			_errors.add("No daemons requested in \"" + line + "\"");
+			return;
+		}
+		for (int i = 0; i < daemons.size(); i++) {
+			daemons.set(i, daemons.get(i).toUpperCase());
+			if (!_allDaemons.contains(daemons.get(i)))
+				_errors.add("Unknown daemon " + daemons.get(i) + " in \"" + line + "\", supported daemons are " + _allDaemons);
+		}
+		
+		int nodeId = _nodes.size();
+		int zkId = daemons.contains("ZK") ? _nodeIdToZkId.size() + 1 : 0;
+		NodeDefinition node = new NodeDefinition(nodeId, key, daemons, zkId, tuning);
+		_nodes.add(node);
+		_nodeIdToInstanceType.put(nodeId, key);
+		if (zkId > 0)
+			_nodeIdToZkId.put(nodeId, zkId);
+		if (!_daemonsToNodeIds.containsKey(node.getDaemons()))
+			_daemonsToNodeIds.put(node.getDaemons(), new ArrayList<Integer>());
+		_daemonsToNodeIds.get(node.getDaemons()).add(nodeId);
+	}
+	
+	/**
+	 * Parse {a, b, c}, returns null (and records error) if malformed
+	 */
+	private List<String> parseList(String line, String value) {
+		int start = value.indexOf("{"), end = value.lastIndexOf("}");
+		if (start != 0 || end < start) {
+			_errors.add("Malformed line \"" + line + "\", expected {...} after " + line.substring(0, line.indexOf(" ")));
+			return null;
+		}
+		ArrayList<String> ret = new ArrayList<String>();
+		for (String element : value.substring(start + 1, end).split(",")) {
+			if (element.trim().length() > 0)
+				ret.add(element.trim());
+		}
+		return ret;
+	}
+	
+	/**
+	 * Parse [key=value, ...] following the daemons of a node. Returns empty map (and records error) if malformed
+	 */
+	private HashMap<String, Integer> parseTuning(String line, String value) {
+		HashMap<String, Integer> ret = new HashMap<String, Integer>();
+		if (value.length() == 0)
+			return ret;
+		if (!value.startsWith("[") || !value.endsWith("]")) {
+			_errors.add("Malformed line \"" + line + "\", expected [key=value, ...] after daemons");
+			return ret;
+		}
+		for (String element : value.substring(1, value.length() - 1).split(",")) {
+			if (element.trim().length() == 0)
+				continue;
+			String[] kv = element.split("=");
+			if (kv.length != 2 || !_tuningSettings.contains(kv[0].trim()))
+				_errors.add("Unknown tuning \"" + element.trim() + "\" in \"" + line + "\", supported are " + _tuningSettings);
+			else if (!isInteger(kv[1].trim()) || Integer.valueOf(kv[1].trim()) <= 0)
+				_errors.add("Tuning " + kv[0].trim() + " must be a positive integer in \"" + line + "\"");
+			else
+				ret.put(kv[0].trim(), Integer.valueOf(kv[1].trim()));
+		}
+		return ret;
+	}
+	
+	private void validate() {
+		if (!_found)
+			return;
+		if (getRawConfigValue("image") == null)
+			_errors.add("Missing setting image");
+		if (getRawConfigValue("region") == null)
+			_errors.add("Missing setting region");
+		if (getRawConfigValue("storm-version") == null)
+			_errors.add("Missing setting storm-version");
+		else if (getStormRemoteLocation() == null)
+			_errors.add("Storm version " + getRawConfigValue("storm-version") + " not currently supported");
+		if (getRawConfigValue("zk-version") == null)
+			_errors.add("Missing setting zk-version");
+		else if (getZKLocation() == null)
+			_errors.add("Zookeeper version " + getRawConfigValue("zk-version") + " not currently supported");
+		
+		int masters = 0, uis = 0, pacemakers = 0;
+		for (NodeDefinition n : _nodes) {
+			masters += n.hasDaemon("MASTER") ? 1 : 0;
+			uis += n.hasDaemon("UI") ? 1 : 0;
+			pacemakers += n.hasDaemon("PACEMAKER") ? 1 : 0;
+		}
+		if (masters != 1)
+			_errors.add("Exactly one node must run MASTER, found " + masters);
+		if (uis != 1)
+			_errors.add("Exactly one node must run UI, found " + uis);
+		if (_nodeIdToZkId.isEmpty())
+			_errors.add("At least one node must run ZK");
+		if (pacemakers > 0 && getRawConfigValue("storm-version") != null && getRawConfigValue("storm-version").startsWith("0."))
+			_errors.add("Daemon PACEMAKER requires storm-version 1.0.0 or newer");
+		
+		try {
+			if (!SchedulerMetaGenerator.class.isAssignableFrom(Class.forName(getSchedulerMetaGenerator())))
+				_errors.add("Setting scheduler-meta-generator must implement " + SchedulerMetaGenerator.class.getName());
+		} catch (ClassNotFoundException ex) {
+			_errors.add("Setting scheduler-meta-generator, class " + getSchedulerMetaGenerator() + " not found");
+		}
+		if (!Arrays.asList("default", "performance").contains(getZKProfile()))
+			_errors.add("Setting zk-profile must be default or performance, was \"" + getZKProfile() + "\"");
+		if (getKernelProfile() != null && !Arrays.asList(KernelTuning.LOW_LATENCY, KernelTuning.THROUGHPUT).contains(getKernelProfile()))
+			_errors.add("Setting kernel-profile must be " + KernelTuning.LOW_LATENCY + " or " + KernelTuning.THROUGHPUT + ", was \"" + getKernelProfile() + "\"");
+		if (isMountLocalStorage() && getEBSStorageSize() > 0)
+			_errors.add("Settings mount-local-storage and mount-ebs-storage-size cannot be combined, both are mounted on /mnt");
+		if (getEBSVolumes() < 1 || getEBSVolumes() > MAX_EBS_VOLUMES)
+			_errors.add("Setting ebs-volumes must be between 1 and " + MAX_EBS_VOLUMES);
+		if (getEBSIops() > 0 && !Arrays.asList("io1", "io2", "gp3").contains(getEBSVolumeType()))
+			_errors.add("Setting ebs-iops requires ebs-volume-type io1, io2 or gp3");
+	}
+	
+	private static boolean isInteger(String value) {
+		try {
+			Integer.valueOf(value);
+			return true;
+		} catch (NumberFormatException ex) {
+			return false;
+		}
 	}
 	
 	/**
@@ -52,42 +268,27 @@ public class Configuration {
 	 * Otherwise error message and false
 	 */
 	public boolean sanityCheck() {
-		if (_conf == null) {
+		if (!_found) {
 			log.error("Clustername not found in configuration.yaml");
 			return false;
 		}
-				
-		return true;
+		for (String error : _errors)
+			log.error(error);
+		return _errors.isEmpty();
 	}
 	
 	/**
 	 * Get exec (pre config)
 	 */
 	public ArrayList<String> getRemoteExecPreConfig() {
-		ArrayList<String> execPreConfig = new ArrayList<String>();
-		for (int i = 0; i < _conf.size(); i++) {
-			String key = _conf.get(i).substring(0, _conf.get(i).indexOf(" "));
-			if (key.equals("remote-exec-preconfig")) {
-				for (String command : _conf.get(i).substring(_conf.get(i).indexOf("{") + 1, _conf.get(i).indexOf("}")).split(","))
-					execPreConfig.add(command.trim());
-			}
-		}
-		return execPreConfig;
+		return new ArrayList<String>(_remoteExecPreConfig);
 	}
 	
 	/**
 	 * Get exec (post config)
 	 */
 	public ArrayList<String> getRemoteExecPostConfig() {
-		ArrayList<String> execPostConfig = new ArrayList<String>();
-		for (int i = 0; i < _conf.size(); i++) {
-			String key = _conf.get(i).substring(0, _conf.get(i).indexOf(" "));
-			if (key.equals("remote-exec-postconfig")) {
-				for (String command : _conf.get(i).substring(_conf.get(i).indexOf("{") + 1, _conf.get(i).indexOf("}")).split(","))
-					execPostConfig.add(command.trim());
-			}
-		}
-		return execPostConfig;
+		return new ArrayList<String>(_remoteExecPostConfig);
 	}
 	
 	/**
@@ -107,9 +308,6 @@ public class Configuration {
 	 * Get region
 	 */
 	public String getDeploymentLocation() {
-		if (_locationID != null) {
-			return _locationID;
-		}
 		return getRawConfigValue("region");
 	}
 	
@@ -129,24 +327,133 @@ public class Configuration {
 	}
 	
 	
+	/**
+	 * Get class name of Storm scheduler, or null for the default scheduler of Storm.
+	 * Default = DistributedFixedScheduler, if scheduler-webdownload-path is set
+	 */
+	public String getSchedulerClass() {
+		String scheduler = getRawConfigValue("scheduler-class");
+		if (scheduler == null && getSchedulerPath() != null)
+			return Scheduler.DISTRIBUTED_FIXED_SCHEDULER;
+		return scheduler;
+	}
+	
+	/**
+	 * Get class name of SchedulerMetaGenerator, describing nodes in supervisor.scheduler.meta
+	 * Default = DefaultSchedulerMetaGenerator
+	 */
+	public String getSchedulerMetaGenerator() {
+		String generator = getRawConfigValue("scheduler-meta-generator");
+		return (generator == null) ? DefaultSchedulerMetaGenerator.class.getName() : generator;
+	}
+	
 	/**
 	 * Get whether memory monitor should be executed or not
 	 * Default = false
 	 */
 	public boolean executeMemoryMonitor() {
-		String memoryMonitor = getRawConfigValue("memory-monitor");
-		if (memoryMonitor != null && memoryMonitor.trim().equalsIgnoreCase("true"))
-			return true;
-		return false;
+		return getBoolean("memory-monitor");
+	}
+	
+	/**
+	 * Get whether nodes should start installing as soon as they are running,
+	 * 	instead of waiting until all nodes in the cluster are running.
+	 * Default = false
+	 */
+	public boolean isStreamingConfiguration() {
+		return getBoolean("streaming-configuration");
+	}
+	
+	/**
+	 * Get max number of scripts executing on nodes at the same time
+	 * Default = 20
+	 */
+	public int getMaxConcurrentScripts() {
+		return Math.max(1, getInteger("max-concurrent-scripts", 20));
+	}
+	
+	/**
+	 * Get whether scheduler meta data should be written as part of the user setup,
+	 * 	instead of in a separate ssh session.
+	 * Default = false
+	 */
+	public boolean isSchedulerMetaInline() {
+		return getBoolean("scheduler-meta-inline");
+	}
+	
+	/**
+	 * Get whether Storm and Zookeeper should be downloaded once to the local
+	 * 	artifact cache, and served to nodes from inside the cluster
+	 * Default = false
+	 */
+	public boolean isArtifactCache() {
+		return getBoolean("artifact-cache");
+	}
+	
+	/**
+	 * Get base url of http server, serving the artifact cache to nodes.
+	 * 	If null, artifacts are seeded to and served by the MASTER node
+	 */
+	public String getArtifactMirror() {
+		return getRawConfigValue("artifact-mirror");
+	}
+	
+	/**
+	 * Get number of nodes each node distributes artifacts to.
+	 * 	If 0, all nodes download artifacts directly from the mirror
+	 * Default = 0
+	 */
+	public int getArtifactFanout() {
+		return Math.max(0, getInteger("artifact-fanout", 0));
+	}
+	
+	/**
+	 * Get seconds between readiness probes of daemons on nodes. If 0, unhealthy daemons are not restarted
+	 * Default = 30
+	 */
+	public int getHealthCheckInterval() {
+		return Math.max(0, getInteger("health-check-interval", 30));
+	}
+	
+	/**
+	 * Get number of failed readiness probes in a row, before a daemon is restarted
+	 * Default = 3
+	 */
+	public int getHealthCheckFailures() {
+		return Math.max(1, getInteger("health-check-failures", 3));
+	}
+	
+	/**
+	 * Get seconds a daemon has to become ready after it is started. Deploy fails if a daemon is not ready in time
+	 * Default = 300
+	 */
+	public int getReadinessTimeout() {
+		return Math.max(1, getInteger("readiness-timeout", 300));
+	}
+	
+	/**
+	 * Get Zookeeper tuning profile. default only enables autopurge, performance also keeps the transaction log on the data device
+	 * 	and snapshots on the root device, raises limits and sizes the heap from the memory of the node.
+	 * 	No device is dedicated to the transaction log, it shares the data device with Storm
+	 * Default = default
+	 */
+	public String getZKProfile() {
+		String profile = getRawConfigValue("zk-profile");
+		return (profile == null) ? "default" : profile.toLowerCase();
+	}
+	
+	/**
+	 * Get kernel and network tuning profile (low-latency or throughput), or null to keep the settings of the image
+	 */
+	public String getKernelProfile() {
+		String profile = getRawConfigValue("kernel-profile");
+		return (profile == null) ? null : profile.toLowerCase();
 	}
 	
 	/**
 	 * Get image
 	 */
 	public String getDeploymentImage() {
-		if (_imageID != null) {
-			return _imageID;
-		}
 		return getRawConfigValue("image");
 	}
 	
@@ -205,82 +512,55 @@ public class Configuration {
 	}
 	
 	private String getRawConfigValue(String k) {
-		for (int i = 0; i < _conf.size(); i++) {
-			String key = _conf.get(i).substring(0, _conf.get(i).indexOf(" "));
-			if (k.equals(key))
-				return _conf.get(i).substring(_conf.get(i).indexOf(" ")).replaceAll("\"", "").toLowerCase().trim();
-		}
-		return null;
+		return _settings.get(k);
+	}
+	
+	private boolean getBoolean(String k) {
+		String value = getRawConfigValue(k);
+		return value != null && value.equalsIgnoreCase("true");
 	}
 	
 	/**
-	 * Get map{node id, instanceType}
+	 * Values are validated when parsed, so only missing settings return the default value
 	 */
-	public HashMap<Integer, String> getNodeIdToInstanceType() {
-		if (_nodeIdToInstanceTypeID != null) {
-			return _nodeIdToInstanceTypeID;
-		}
-		
-		// Create nodeid to instancetype
-		HashMap<Integer, String> nodeIdToInstanceTypeID = new HashMap<Integer, String>();
-		for (int nodeId = 0; nodeId < _conf.size(); nodeId++) {
-			if (_allConfigurationSettings.contains(_conf.get(nodeId).substring(0, _conf.get(nodeId).indexOf(" "))))
-				continue;
-
-			String instance = _conf.get(nodeId).substring(0, _conf.get(nodeId).indexOf(" "));
-			nodeIdToInstanceTypeID.put(nodeId, instance);
-		}
-		return nodeIdToInstanceTypeID;
+	private int getInteger(String k, int defaultValue) {
+		String value = getRawConfigValue(k);
+		if (value == null || !isInteger(value))
+			return defaultValue;
+		return Integer.valueOf(value);
 	}
 	
+	/**
+	 * Get all requested nodes, in order of node id
+	 */
+	public List<NodeDefinition> getNodes() {
+		return Collections.unmodifiableList(_nodes);
+	}
 	
 	/**
-	 * Get map{node id, zkid}
+	 * Get map{node id, instanceType}
 	 */
-	public HashMap<Integer, Integer> getNodeIdToZkId() {
-		int zkid = 1;
-		HashMap<Integer, Integer> nodeIdToZkId = new HashMap<Integer, Integer>();
-		for (int nodeId = 0; nodeId < _conf.size(); nodeId++) {
-			if (_allConfigurationSettings.contains(_conf.get(nodeId).substring(0, _conf.get(nodeId).indexOf(" "))))
-				continue;
-			
-			String daeamons = _conf.get(nodeId).substring(_conf.get(nodeId).indexOf("{") + 1, _conf.get(nodeId).indexOf("}"));
-			if (daeamons.contains("ZK"))
-				nodeIdToZkId.put(nodeId, zkid++);
-		}
-		return nodeIdToZkId;
+	public Map<Integer, String> getNodeIdToInstanceType() {
+		return Collections.unmodifiableMap(_nodeIdToInstanceType);
 	}
 	
+	/**
+	 * Get map{node id, zkid}
+	 */
+	public Map<Integer, Integer> getNodeIdToZkId() {
+		return Collections.unmodifiableMap(_nodeIdToZkId);
+	}
 	
 	/**
 	 * Get map{arr[daemons], arr[node ids]}
 	 */
-	public HashMap<ArrayList<String>, ArrayList<Integer>> getDaemonsToNodeIds() {
-		HashMap<String, ArrayList<Integer>> deamonsToNodeIds = new HashMap<String, ArrayList<Integer>>();
-		for (int i = 0; i < _conf.size(); i++) {
-			if (_allConfigurationSettings.contains(_conf.get(i).substring(0, _conf.get(i).indexOf(" "))))
-				continue;
-			
-			String deamons = _conf.get(i).substring(_conf.get(i).indexOf("{") + 1, _conf.get(i).indexOf("}"));
-			if (!deamonsToNodeIds.containsKey(deamons))
-				deamonsToNodeIds.put(deamons, new ArrayList<Integer>());
-			deamonsToNodeIds.get(deamons).add(i);
-		}
-		
-		// Convert to arr[daemons], arr[node ids]
-		HashMap<ArrayList<String>, ArrayList<Integer>> ret = new HashMap<ArrayList<String>, ArrayList<Integer>>();
-		for (Entry<String, ArrayList<Integer>> e : deamonsToNodeIds.entrySet()) {
-			ArrayList<String> daemons = new ArrayList<String>();
-			for (String daemon : e.getKey().split(","))
-				daemons.add(daemon.trim());
-			ret.put(daemons, e.getValue());
-		}
-		return ret;
+	public Map<List<String>, List<Integer>> getDaemonsToNodeIds() {
+		return Collections.unmodifiableMap(_daemonsToNodeIds);
 	}
 	
 	public PACKAGE_MANAGER getPackageManager() {
 		String pm = getRawConfigValue("packagemanager");
-		if (pm.equalsIgnoreCase("yum"))
+		if (pm != null && pm.equalsIgnoreCase("yum"))
 			return PACKAGE_MANAGER.YUM;
 		return PACKAGE_MANAGER.APT;
 	}
@@ -299,25 +579,36 @@ public class Configuration {
 		return System.getProperty("user.home") + "/.ssh/id_rsa.pub";
 	}
 	public boolean isMountLocalStorage() {
-		String pm = getRawConfigValue("mount-local-storage");
-		if (pm!=null && pm.equalsIgnoreCase("true"))
-			return true;
-		return false;
+		return getBoolean("mount-local-storage");
 	}
 	
+	/**
+	 * Get size in GB of each EBS volume attached to nodes. If 0, no EBS volumes are attached
+	 */
 	public int getEBSStorageSize() {
-		String ebsVolSize = getRawConfigValue("mount-ebs-storage-size");
-		if (ebsVolSize != null) {
-			int ebsSize = Integer.valueOf(0);
-			try {
-				ebsSize = Integer.valueOf(ebsVolSize);
-			} catch (NumberFormatException e) {
-				// TODO Auto-generated catch block
-				log.warn("Invalid volume size for EBS Storage: "+ebsVolSize);
-			}
-			return ebsSize;
-		}
-		return 0;
+		return getInteger("mount-ebs-storage-size", 0);
+	}
+	
+	/**
+	 * Get number of EBS volumes attached to each node, striped as RAID0 if more than one
+	 * Default = 1
+	 */
+	public int getEBSVolumes() {
+		return getInteger("ebs-volumes", 1);
+	}
+	
+	/**
+	 * Get EBS volume type (e.g. gp2, io1, st1), or null for the provider default
+	 */
+	public String getEBSVolumeType() {
+		return getRawConfigValue("ebs-volume-type");
+	}
+	
+	/**
+	 * Get provisioned IOPS of each EBS volume, or 0 if not provisioned
+	 */
+	public int getEBSIops() {
+		return getInteger("ebs-iops", 0);
 	}
 
 }
@@ -0,0 +1,62 @@
+package dk.kaspergsm.stormdeploy.userprovided;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Node requested in configuration.yaml, e.g. m1.medium {ZK, WORKER} [slots=2]
+ * 
+ * @author Kasper Grud Skat Madsen
+ */
+public class NodeDefinition {
+	private final int _nodeId, _zkId;
+	private final String _instanceType;
+	private final List<String> _daemons;
+	private final Map<String, Integer> _tuning;
+	
+	/**
+	 * @param zkId
+	 *            Zookeeper id of node (starting from 1), or 0 if node does not run Zookeeper
+	 * @param tuning
+	 *            Storm tuning overrides for node (e.g. slots), replacing values derived from the instanceType
+	 */
+	public NodeDefinition(int nodeId, String instanceType, List<String> daemons, int zkId, Map<String, Integer> tuning) {
+		_nodeId = nodeId;
+		_instanceType = instanceType;
+		_daemons = Collections.unmodifiableList(new ArrayList<String>(daemons));
+		_tuning = Collections.unmodifiableMap(new HashMap<String, Integer>(tuning));
+		_zkId = zkId;
+	}
+	
+	public int getNodeId() {
+		return _nodeId;
+	}
+	
+	public String getInstanceType() {
+		return _instanceType;
+	}
+	
+	public List<String> getDaemons() {
+		return _daemons;
+	}
+	
+	public boolean hasDaemon(String daemon) {
+		return _daemons.contains(daemon);
+	}
+	
+	public Map<String, Integer> getTuning() {
+		return _tuning;
+	}
+	
+	public int getZkId() {
+		return _zkId;
+	}
+	
+	@Override
+	public String toString() {
+		return _instanceType + " " + _daemons.toString();
+	}
+}